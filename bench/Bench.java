@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Minimal benchmark runner: warms each case up, then reports the median ns/op over several timed iterations.
+// Results can be saved as a baseline and compared on the next run to catch regressions before a release.
+public class Bench {
+  public interface Case {
+    // Runs one operation and returns something derived from it so the JIT can't drop the work.
+    Object run() throws Exception;
+  }
+
+  private static final long WARMUP_MILLIS = 2000;
+  private static final long ITERATION_MILLIS = 1000;
+  private static final int ITERATIONS = 5;
+
+  private final Map<String, Case> cases = new LinkedHashMap<>();
+  private final Map<String, Runnable> teardowns = new LinkedHashMap<>();
+  private int sink;
+
+  public void add(String name, Case benchmark) {
+    cases.put(name, benchmark);
+  }
+
+  public void add(String name, Case benchmark, Runnable teardown) {
+    cases.put(name, benchmark);
+    teardowns.put(name, teardown);
+  }
+
+  // Arguments: [filter] [--save file] [--compare file] [--threshold percent]
+  public void run(String[] args) throws Exception {
+    String filter = null;
+    Path save = null;
+    Path compare = null;
+    double threshold = 15;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--save")) save = Paths.get(args[++i]);
+      else if (args[i].equals("--compare")) compare = Paths.get(args[++i]);
+      else if (args[i].equals("--threshold")) threshold = Double.parseDouble(args[++i]);
+      else filter = args[i];
+    }
+
+    Map<String, Double> baseline = compare != null ? load(compare) : new LinkedHashMap<>();
+    Map<String, Double> results = new LinkedHashMap<>();
+    List<String> regressions = new ArrayList<>();
+
+    System.out.println(String.format(Locale.ROOT, "%-40s %14s %14s %10s", "Benchmark", "ns/op", "baseline", "change"));
+    for (Map.Entry<String, Case> entry : cases.entrySet()) {
+      String name = entry.getKey();
+      if (filter != null && !name.contains(filter)) continue;
+
+      double nanosPerOp;
+      try {
+        nanosPerOp = measure(entry.getValue());
+      } finally {
+        Runnable teardown = teardowns.get(name);
+        if (teardown != null) teardown.run();
+      }
+      results.put(name, nanosPerOp);
+
+      Double previous = baseline.get(name);
+      String change = "";
+      if (previous != null) {
+        double percent = (nanosPerOp - previous) / previous * 100;
+        change = String.format(Locale.ROOT, "%+.1f%%", percent);
+        if (percent > threshold) regressions.add(name);
+      }
+      System.out.println(String.format(Locale.ROOT, "%-40s %14.1f %14s %10s", name, nanosPerOp,
+              previous != null ? String.format(Locale.ROOT, "%.1f", previous) : "", change));
+    }
+
+    if (save != null) store(save, results);
+    if (!regressions.isEmpty()) {
+      System.out.println("Slower than baseline by more than " + threshold + "%: " + regressions);
+      System.exit(1);
+    }
+  }
+
+  private double measure(Case benchmark) throws Exception {
+    runFor(benchmark, WARMUP_MILLIS);
+    double[] samples = new double[ITERATIONS];
+    for (int i = 0; i < ITERATIONS; i++) {
+      samples[i] = runFor(benchmark, ITERATION_MILLIS);
+    }
+    Arrays.sort(samples);
+    return samples[ITERATIONS / 2];
+  }
+
+  // Runs the case in growing batches until the time is up, returns ns/op.
+  private double runFor(Case benchmark, long millis) throws Exception {
+    long deadline = System.nanoTime() + millis * 1_000_000L;
+    long ops = 0;
+    long elapsed = 0;
+    int batch = 1;
+    while (true) {
+      long start = System.nanoTime();
+      for (int i = 0; i < batch; i++) {
+        sink += System.identityHashCode(benchmark.run());
+      }
+      long end = System.nanoTime();
+      elapsed += end - start;
+      ops += batch;
+      if (end >= deadline) break;
+      if (end - start < 10_000_000L) batch *= 2;
+    }
+    return (double) elapsed / ops;
+  }
+
+  int sink() {
+    return sink;
+  }
+
+  private static Map<String, Double> load(Path file) throws IOException {
+    Map<String, Double> values = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      int split = line.lastIndexOf('=');
+      if (split > 0) values.put(line.substring(0, split), Double.parseDouble(line.substring(split + 1)));
+    }
+    return values;
+  }
+
+  private static void store(Path file, Map<String, Double> results) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Double> entry : results.entrySet()) {
+      lines.add(entry.getKey() + "=" + entry.getValue());
+    }
+    Files.write(file, lines, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,56 @@
+import models.ResponseMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Checks the order EventCoalescer sends merged events in. Exits with code 1 if it is wrong.
+public class EventCoalescerCheck {
+
+  public static void main(String[] args) {
+    List<String> failures = new ArrayList<>();
+
+    // A status that replaces an earlier pending one must still go out after the screen published between them,
+    // otherwise the till shows a stale screen over the newer status.
+    check(failures, "replaced status goes after the screen before it",
+            Arrays.asList(
+                    event("handleStatusChange", "STATUS_READY_FOR_NEW_TRAN"),
+                    event("handleStatusChange", "STATUS_WAITING_FOR_CARD"),
+                    event("waitForPin", null),
+                    event("handleStatusChange", "STATUS_WAITING_FOR_SIGNATURE")),
+            Arrays.asList("STATUS_READY_FOR_NEW_TRAN", "waitForPin", "STATUS_WAITING_FOR_SIGNATURE"));
+
+    // A prompt waiting for an answer sends everything pending first, then itself.
+    ResponseMessage prompt = event("askForSignature", "SIGN");
+    prompt.callbackId = 1;
+    check(failures, "pending events go before a prompt",
+            Arrays.asList(
+                    event("handleStatusChange", "STATUS_READY_FOR_NEW_TRAN"),
+                    event("waitForCard", null),
+                    event("handleStatusChange", "STATUS_WAITING_FOR_PIN"),
+                    prompt),
+            Arrays.asList("STATUS_READY_FOR_NEW_TRAN", "waitForCard", "STATUS_WAITING_FOR_PIN", "SIGN"));
+
+    if (!failures.isEmpty()) {
+      failures.forEach(System.out::println);
+      System.exit(1);
+    }
+    System.out.println("EventCoalescer order: OK");
+  }
+
+  private static void check(List<String> failures, String name, List<ResponseMessage> published, List<String> expected) {
+    List<String> sent = new ArrayList<>();
+    EventCoalescer coalescer = new EventCoalescer(3600000, msg -> sent.add(msg.prompt != null ? msg.prompt : msg.type));
+    published.forEach(coalescer::publish);
+    coalescer.flush();
+    if (!sent.equals(expected)) {
+      failures.add(name + ": sent " + sent + ", expected " + expected);
+    }
+  }
+
+  private static ResponseMessage event(String type, String prompt) {
+    ResponseMessage event = new ResponseMessage(type);
+    event.prompt = prompt;
+    return event;
+  }
+}
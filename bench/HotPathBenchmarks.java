@@ -0,0 +1,173 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import ecrlib.api.EcrPrintoutLine;
+import models.EPOSMessage;
+import models.ErrorType;
+import models.ResponseMessage;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Benchmarks for the service's hot paths. None of them touch the native terminal library, so they run on plain Linux.
+public class HotPathBenchmarks {
+  private static final String SALE_REQUEST =
+          "{\"id\": 1042, \"type\": \"Sale\", \"currency\": \"GBP\", \"value\": \"12.50\", \"saleId\": 88123, \"transId\": 5}";
+
+  public static void main(String[] args) throws Exception {
+    Bench bench = new Bench();
+    Gson gson = Main.gson;
+
+    byte[] frame = (SALE_REQUEST + (char) 3).getBytes(StandardCharsets.UTF_8);
+    FrameDecoder decoder = new FrameDecoder();
+    List<EPOSMessage> decoded = new ArrayList<>();
+    ByteBuffer whole = ByteBuffer.wrap(frame);
+    bench.add("frame.decode.whole", () -> {
+      decoded.clear();
+      whole.clear();
+      decoder.decode(whole, decoded);
+      return decoded.get(0);
+    });
+
+    // Same frame arriving in three reads, which goes through the partial frame buffer.
+    int third = frame.length / 3;
+    ByteBuffer[] parts = {
+            ByteBuffer.wrap(Arrays.copyOfRange(frame, 0, third)),
+            ByteBuffer.wrap(Arrays.copyOfRange(frame, third, 2 * third)),
+            ByteBuffer.wrap(Arrays.copyOfRange(frame, 2 * third, frame.length))
+    };
+    bench.add("frame.decode.split", () -> {
+      decoded.clear();
+      for (ByteBuffer part : parts) {
+        part.clear();
+        decoder.decode(part, decoded);
+      }
+      return decoded.get(0);
+    });
+
+    bench.add("gson.eposMessage.decode", () -> gson.fromJson(SALE_REQUEST, EPOSMessage.class));
+
+    CountingStream counter = new CountingStream();
+    Writer textWriter = new OutputStreamWriter(counter, Charset.defaultCharset());
+
+    ResponseMessage prompt = new ResponseMessage("askForSignature");
+    prompt.prompt = "Please check the customer's signature.";
+    prompt.callbackId = 12;
+    bench.add("gson.responseMessage.encode.prompt", () -> encode(gson, textWriter, counter, prompt));
+
+    List<EcrPrintoutLine> receipt = StubPrintouts.receipt(40);
+    TransactionSnapshot snapshot = new TransactionSnapshot();
+    snapshot.merchant = receipt;
+    snapshot.customer = receipt;
+    snapshot.cardType = "VISA";
+    snapshot.transactionNumber = "000123";
+    snapshot.pan = "************1234";
+    snapshot.currencyCode = "826";
+    snapshot.amount = "1250";
+    ResponseMessage sale = new ResponseMessage("success");
+    sale.value = snapshot;
+    bench.add("gson.responseMessage.encode.sale", () -> encode(gson, textWriter, counter, sale));
+
+    bench.add("printout.adapter.40lines", () -> encode(gson, textWriter, counter, receipt));
+    Gson reflectiveGson = new Gson();
+    bench.add("printout.reflective.40lines", () -> encode(reflectiveGson, textWriter, counter, receipt));
+
+    bench.add("error.buildErrorObject", () -> encode(gson, textWriter, counter, ErrorHandler.buildErrorObject(ErrorType.deviceNotConnected, "No terminal configured for this request.")));
+
+    // The same messages on a binary connection.
+    byte[] saleCbor = Cbor.encode(gson.fromJson(SALE_REQUEST, JsonElement.class));
+    bench.add("cbor.eposMessage.decode", () -> gson.fromJson(Cbor.decode(saleCbor, 0, saleCbor.length), EPOSMessage.class));
+    bench.add("cbor.responseMessage.encode.prompt", () -> encodeCbor(gson, counter, prompt));
+    bench.add("cbor.responseMessage.encode.sale", () -> encodeCbor(gson, counter, sale));
+    bench.add("cbor.printout.40lines", () -> encodeCbor(gson, counter, receipt));
+
+    // Totals for a closed batch of 1000 transactions, as a summary Batch request adds them up.
+    List<TransactionSnapshot> closedBatch = new ArrayList<>();
+    String[] schemes = {"VISA", "MASTERCARD", "MAESTRO", "AMEX"};
+    for (int i = 0; i < 1000; i++) {
+      TransactionSnapshot transaction = new TransactionSnapshot();
+      transaction.cardType = schemes[i % schemes.length];
+      transaction.currencyCode = "GBP";
+      transaction.type = i % 10 == 0 ? "4" : "1";
+      transaction.authorisationType = i % 3 == 0 ? "OFFLINE" : "ONLINE";
+      transaction.amount = String.valueOf(100 + i * 7);
+      closedBatch.add(transaction);
+    }
+    bench.add("batch.aggregate.1000", () -> {
+      BatchAggregator aggregator = new BatchAggregator();
+      closedBatch.forEach(aggregator::add);
+      return aggregator.totals();
+    });
+
+    // Status and screen events from a card read merged into one window.
+    List<ResponseMessage> sentEvents = new ArrayList<>();
+    EventCoalescer coalescer = new EventCoalescer(3600000, sentEvents::add);
+    ResponseMessage[] cardRead = {
+            event("handleStatusChange", "STATUS_WAITING_FOR_CARD"),
+            event("waitForPin", null),
+            event("handleStatusChange", "STATUS_WAITING_FOR_PIN"),
+            event("showPromptScreen", "PIN OK")
+    };
+    bench.add("events.coalesce.cardRead", () -> {
+      for (ResponseMessage event : cardRead) coalescer.publish(event);
+      coalescer.flush();
+      int sent = sentEvents.size();
+      sentEvents.clear();
+      return sent;
+    });
+
+    // A prompt handed from the terminal thread to the EPOS side and answered, as in DeviceHandler.waitForCallbackResponse.
+    CallbackExchange exchange = new CallbackExchange();
+    EPOSMessage answer = new EPOSMessage(1042, "Response", null, "true", null, null, null);
+    Thread responder = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        if (!exchange.offer(answer)) Thread.yield();
+      }
+    }, "bench-responder");
+    responder.setDaemon(true);
+    responder.start();
+    bench.add("callback.handoff", () -> exchange.await(exchange.open(), 1000), responder::interrupt);
+
+    bench.run(args);
+  }
+
+  private static ResponseMessage event(String type, String prompt) {
+    ResponseMessage event = new ResponseMessage(type);
+    event.prompt = prompt;
+    return event;
+  }
+
+  private static Object encode(Gson gson, Writer textWriter, CountingStream counter, Object message) throws Exception {
+    JsonWriter jsonWriter = gson.newJsonWriter(textWriter);
+    gson.toJson(message, message.getClass(), jsonWriter);
+    jsonWriter.flush();
+    return counter.count;
+  }
+
+  private static Object encodeCbor(Gson gson, CountingStream counter, Object message) {
+    gson.toJson(message, message.getClass(), Cbor.newWriter(counter));
+    return counter.count;
+  }
+
+  // Stands in for the socket: counts the bytes so the writer can't be optimised away.
+  private static class CountingStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,220 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives a running service over the EPOS socket protocol: each client sends requests terminated by ETX, answers
+// any prompt that carries a callbackId and waits for the EOT terminated reply. Reports throughput and latency.
+// With "binary" as the last argument the clients negotiate the length-prefixed CBOR protocol instead.
+public class LoadGenerator {
+  private static final Gson gson = new Gson();
+
+  private final String host;
+  private final int port;
+  private final String type;
+  private final String amount;
+  private final String answer;
+  private final int requests;
+  private final boolean binary;
+  private final AtomicLong nextId = new AtomicLong();
+
+  private final AtomicLong successes = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong busy = new AtomicLong();
+  private final AtomicLong prompts = new AtomicLong();
+
+  public LoadGenerator(String host, int port, String type, String amount, String answer, int requests, boolean binary) {
+    this.host = host;
+    this.port = port;
+    this.type = type;
+    this.amount = amount;
+    this.answer = answer;
+    this.requests = requests;
+    this.binary = binary;
+  }
+
+  // Arguments: [host] [port] [clients] [requests per client] [type] [tid,tid,...] [binary]
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "127.0.0.1";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+    int clients = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+    String type = args.length > 4 ? args[4] : "Sale";
+    Integer[] tids = args.length > 5 ? parseTids(args[5]) : new Integer[] {null};
+    boolean binary = args.length > 6 && args[6].equals("binary");
+
+    LoadGenerator generator = new LoadGenerator(host, port, type, "1.00", "true", requests, binary);
+    long[][] latencies = new long[clients][];
+    List<Thread> threads = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      int client = i;
+      Integer tid = tids[i % tids.length];
+      Thread thread = new Thread(() -> latencies[client] = generator.runClient(tid), "load-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+    System.out.println(String.format(Locale.ROOT, "%d clients, %d %s requests in %.2f s, %.1f req/s",
+            clients, all.length, type, elapsed / 1e9, all.length / (elapsed / 1e9)));
+    System.out.println(String.format(Locale.ROOT, "success %d, error %d, busy %d, prompts answered %d",
+            generator.successes.get(), generator.errors.get(), generator.busy.get(), generator.prompts.get()));
+    if (all.length > 0) {
+      System.out.println(String.format(Locale.ROOT, "latency ms: p50 %.2f  p99 %.2f  p999 %.2f  max %.2f",
+              percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), all[all.length - 1] / 1e6));
+    }
+  }
+
+  private long[] runClient(Integer tid) {
+    long[] latencies = new long[requests];
+    int done = 0;
+    try (Socket socket = new Socket(host, port)) {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      if (binary) handshake(in, out);
+      for (; done < requests; done++) {
+        JsonObject request = new JsonObject();
+        request.addProperty("id", nextId.incrementAndGet());
+        request.addProperty("type", type);
+        request.addProperty("value", amount);
+        if (tid != null) request.addProperty("tid", tid);
+
+        long start = System.nanoTime();
+        send(out, request);
+        JsonObject reply = binary ? awaitBinaryReply(in, out, tid) : awaitReply(in, out, tid);
+        latencies[done] = System.nanoTime() - start;
+        if (reply == null) break;
+        count(reply);
+      }
+    } catch (IOException e) {
+      System.err.println("Client failed after " + done + " requests: " + e.getMessage());
+    }
+    return Arrays.copyOf(latencies, done);
+  }
+
+  // Reads frames until the final reply, answering prompts on the way. Returns null if the server hangs up.
+  private JsonObject awaitReply(InputStream in, OutputStream out, Integer tid) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == 4) {
+        // Final replies end with EOT. The ETX after it (error objects have none) is skipped as an empty frame.
+        return parse(frame);
+      }
+      if (b == 3) {
+        if (frame.size() == 0) continue;
+        JsonObject callback = parse(frame);
+        frame.reset();
+        answerPrompt(out, callback, tid);
+        continue;
+      }
+      frame.write(b);
+    }
+    return null;
+  }
+
+  private void handshake(InputStream in, OutputStream out) throws IOException {
+    out.write(new byte[] {(byte) 0xEB, 'E', 'V', 'O', 1});
+    out.flush();
+    byte[] answer = readFully(in, 5);
+    if (answer == null || answer[0] != (byte) 0xEB) throw new IOException("Service did not accept the binary protocol");
+  }
+
+  // Binary frames: kind byte (1 for the final reply), four byte length, CBOR payload.
+  private JsonObject awaitBinaryReply(InputStream in, OutputStream out, Integer tid) throws IOException {
+    while (true) {
+      byte[] header = readFully(in, 5);
+      if (header == null) return null;
+      int length = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+      byte[] payload = readFully(in, length);
+      if (payload == null) return null;
+      JsonObject message = Cbor.decode(payload, 0, length).getAsJsonObject();
+      if (header[0] == 1) return message;
+      answerPrompt(out, message, tid);
+    }
+  }
+
+  private void answerPrompt(OutputStream out, JsonObject callback, Integer tid) throws IOException {
+    if (callback != null && callback.has("callbackId") && !callback.get("callbackId").isJsonNull()) {
+      JsonObject response = new JsonObject();
+      response.addProperty("type", "Response");
+      response.addProperty("value", answer);
+      response.add("callbackId", callback.get("callbackId"));
+      if (tid != null) response.addProperty("tid", tid);
+      send(out, response);
+      prompts.incrementAndGet();
+    }
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] data = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int n = in.read(data, read, length - read);
+      if (n < 0) return null;
+      read += n;
+    }
+    return data;
+  }
+
+  private void count(JsonObject reply) {
+    String replyType = reply.has("type") ? reply.get("type").getAsString() : null;
+    String status = reply.has("status") && !reply.get("status").isJsonNull() ? reply.get("status").getAsString() : null;
+    if ("success".equals(replyType)) successes.incrementAndGet();
+    else if ("TK_TERMINAL_BUSY".equals(status)) busy.incrementAndGet();
+    else errors.incrementAndGet();
+  }
+
+  private void send(OutputStream out, JsonObject message) throws IOException {
+    if (binary) {
+      byte[] payload = Cbor.encode(message);
+      out.write(0);
+      for (int shift = 24; shift >= 0; shift -= 8) out.write(payload.length >>> shift);
+      out.write(payload);
+    } else {
+      out.write(gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+      out.write(3);
+    }
+    out.flush();
+  }
+
+  private static JsonObject parse(ByteArrayOutputStream frame) {
+    try {
+      return gson.fromJson(new String(frame.toByteArray(), StandardCharsets.UTF_8), JsonObject.class);
+    } catch (RuntimeException e) {
+      System.err.println("Unreadable frame: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+  }
+
+  private static Integer[] parseTids(String list) {
+    String[] parts = list.split(",");
+    Integer[] tids = new Integer[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      tids[i] = Integer.parseInt(parts[i].trim());
+    }
+    return tids;
+  }
+}
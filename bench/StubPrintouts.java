@@ -0,0 +1,16 @@
+import ecrlib.api.EcrPrintoutLine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds receipt lines without the native library, the same way the simulated terminal does.
+public class StubPrintouts {
+
+  public static List<EcrPrintoutLine> receipt(int lineCount) {
+    List<EcrPrintoutLine> lines = new ArrayList<>(lineCount);
+    for (int i = 0; i < lineCount; i++) {
+      lines.add(SimulatedTerminalBackend.line(i, String.format("%-20s%20s", "ITEM " + i, "12.34 GBP")));
+    }
+    return lines;
+  }
+}
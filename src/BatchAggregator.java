@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Totals of a batch by card scheme, currency, transaction type and authorisation type, added up as the batch is walked.
+// Each value is interned to a small id and the four ids are packed into one long key. Counts and amounts are kept as
+// fixed-point longs in an open-addressing table, so adding a transaction doesn't allocate once its key has been seen.
+public class BatchAggregator {
+  private static final int DIMENSIONS = 4;
+  private static final int MAX_IDS = 1 << 16;
+
+  public static class Total {
+    public String cardType;
+    public String currencyCode;
+    public String type;
+    public String authorisationType;
+    public long count;
+    // Minor units.
+    public long amount;
+  }
+
+  // Id 0 stands for a missing value in every dimension.
+  private final List<Map<String, Integer>> ids = new ArrayList<>(DIMENSIONS);
+  private final List<List<String>> names = new ArrayList<>(DIMENSIONS);
+
+  // slots holds row + 1 for each occupied slot, 0 for an empty one.
+  private int[] slots = new int[64];
+  private long[] keys = new long[32];
+  private long[] counts = new long[32];
+  private long[] amounts = new long[32];
+  private int rows;
+  private int invalidAmounts;
+
+  public BatchAggregator() {
+    for (int i = 0; i < DIMENSIONS; i++) {
+      ids.add(new HashMap<>());
+      List<String> dimension = new ArrayList<>();
+      dimension.add(null);
+      names.add(dimension);
+    }
+  }
+
+  public void add(TransactionSnapshot transaction) {
+    long key = ((long) id(0, transaction.cardType) << 48) | ((long) id(1, transaction.currencyCode) << 32)
+            | ((long) id(2, transaction.type) << 16) | id(3, transaction.authorisationType);
+    int row = row(key);
+    counts[row]++;
+    try {
+      amounts[row] += parseAmount(transaction.amount);
+    } catch (NumberFormatException | ArithmeticException e) {
+      invalidAmounts++;
+    }
+  }
+
+  // Transactions counted but left out of the amount totals because their amount couldn't be read.
+  public int invalidAmounts() {
+    return invalidAmounts;
+  }
+
+  public List<Total> totals() {
+    Integer[] order = new Integer[rows];
+    for (int i = 0; i < rows; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+    List<Total> totals = new ArrayList<>(rows);
+    for (int row : order) {
+      long key = keys[row];
+      Total total = new Total();
+      total.cardType = names.get(0).get((int) (key >>> 48) & 0xffff);
+      total.currencyCode = names.get(1).get((int) (key >>> 32) & 0xffff);
+      total.type = names.get(2).get((int) (key >>> 16) & 0xffff);
+      total.authorisationType = names.get(3).get((int) key & 0xffff);
+      total.count = counts[row];
+      total.amount = amounts[row];
+      totals.add(total);
+    }
+    return totals;
+  }
+
+  // Amounts come from the terminal in minor units ("1250"). A decimal point, if there is one, is read as major.minor
+  // ("12.50"), with at most two decimals.
+  static long parseAmount(String amount) {
+    if (amount == null) throw new NumberFormatException("No amount");
+    int start = 0;
+    int end = amount.length();
+    while (start < end && amount.charAt(start) == ' ') start++;
+    while (end > start && amount.charAt(end - 1) == ' ') end--;
+    boolean negative = start < end && amount.charAt(start) == '-';
+    if (negative) start++;
+    if (start == end) throw new NumberFormatException("Empty amount");
+
+    long value = 0;
+    int decimals = -1;
+    for (int i = start; i < end; i++) {
+      char c = amount.charAt(i);
+      if (c == '.' && decimals < 0) {
+        decimals = 0;
+        continue;
+      }
+      if (c < '0' || c > '9' || decimals == 2) throw new NumberFormatException("Bad amount " + amount);
+      value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+      if (decimals >= 0) decimals++;
+    }
+    if (decimals >= 0) {
+      for (int i = decimals; i < 2; i++) value = Math.multiplyExact(value, 10);
+    }
+    return negative ? -value : value;
+  }
+
+  private int id(int dimension, String value) {
+    if (value == null) return 0;
+    Integer id = ids.get(dimension).get(value);
+    if (id != null) return id;
+    List<String> dimensionNames = names.get(dimension);
+    // Far more distinct values than any batch has, lump the rest in with the missing ones.
+    if (dimensionNames.size() >= MAX_IDS) return 0;
+    id = dimensionNames.size();
+    dimensionNames.add(value);
+    ids.get(dimension).put(value, id);
+    return id;
+  }
+
+  private int row(long key) {
+    int mask = slots.length - 1;
+    int slot = hash(key) & mask;
+    while (slots[slot] != 0) {
+      int row = slots[slot] - 1;
+      if (keys[row] == key) return row;
+      slot = (slot + 1) & mask;
+    }
+
+    int row = rows++;
+    if (row == keys.length) {
+      keys = Arrays.copyOf(keys, row * 2);
+      counts = Arrays.copyOf(counts, row * 2);
+      amounts = Arrays.copyOf(amounts, row * 2);
+    }
+    keys[row] = key;
+    slots[slot] = row + 1;
+    if (rows * 2 > slots.length) rehash();
+    return row;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int row = 0; row < rows; row++) {
+      int slot = hash(keys[row]) & mask;
+      while (slots[slot] != 0) slot = (slot + 1) & mask;
+      slots[slot] = row + 1;
+    }
+  }
+
+  private static int hash(long key) {
+    long mixed = key * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32));
+  }
+}
@@ -0,0 +1,206 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import ecrlib.api.EcrPrintoutLine;
+import models.ErrorType;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// The closed batch as far as it has been read from the terminal, so a repeated or interrupted Batch request only reads
+// the transactions it hasn't seen. Kept in a file per terminal: one line per transaction, then a line with the closing
+// day receipt once the whole batch has been read. Emptied when a Reconcile closes a new batch.
+// Only the count, the last transaction and the receipt are kept in memory; the transactions are streamed back from the
+// file, so a large batch costs no more memory than the streaming Batch mode. If the file can't be written the cache is
+// turned off and every Batch request reads the terminal.
+// Only used on the terminal's worker.
+public class BatchCache {
+  private final File file;
+  private int size;
+  private TransactionSnapshot last;
+  private List<EcrPrintoutLine> receipt;
+  private Writer out;
+
+  public BatchCache(File directory, String name) {
+    this.file = new File(directory, name + ".batch");
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Cannot create directory " + directory);
+      }
+      load();
+      out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.configError, e, "Failed to open the batch cache " + file + ", reading batches from the terminal every time.");
+      disable();
+    }
+  }
+
+  // Number of transactions read so far, the terminal is asked for the ones after it.
+  public int size() {
+    return size;
+  }
+
+  public TransactionSnapshot last() {
+    return last;
+  }
+
+  // The closing day receipt, or null until the whole batch has been read.
+  public List<EcrPrintoutLine> receipt() {
+    return receipt;
+  }
+
+  // Hands every cached transaction to the sink in batch order, reading them back from the file one line at a time.
+  // If the file can't be read the cache is emptied, so the next request reads the batch from the terminal.
+  public void forEach(Consumer<TransactionSnapshot> sink) throws IOException {
+    if (size == 0) return;
+    int[] seen = {0};
+    try {
+      scan(line -> {
+        if (!line.has("entry") || seen[0] == size) return false;
+        sink.accept(Main.gson.fromJson(line.get("entry"), TransactionSnapshot.class));
+        seen[0]++;
+        return true;
+      });
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.configError, e, "Failed to read the batch cache " + file + ", clearing it.");
+      reset();
+      throw e;
+    }
+    if (seen[0] != size) {
+      ErrorHandler.error(ErrorType.configError, "The batch cache " + file + " holds " + seen[0] + " transactions instead of " + size + ", clearing it.");
+      reset();
+      throw new IOException("Batch cache " + file + " is incomplete");
+    }
+  }
+
+  public void add(TransactionSnapshot transaction) {
+    if (out == null) return;
+    JsonObject line = new JsonObject();
+    line.add("entry", Main.gson.toJsonTree(transaction));
+    if (append(line)) {
+      size++;
+      last = transaction;
+    }
+  }
+
+  public void complete(List<EcrPrintoutLine> lines) {
+    if (out == null) return;
+    JsonObject line = new JsonObject();
+    line.add("receipt", Main.gson.toJsonTree(lines));
+    if (append(line)) receipt = lines;
+  }
+
+  public void reset() {
+    size = 0;
+    last = null;
+    receipt = null;
+    if (out == null) return;
+    try {
+      out.close();
+      out = new OutputStreamWriter(new FileOutputStream(file, false), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.configError, e, "Failed to clear the batch cache " + file + ", reading batches from the terminal every time.");
+      disable();
+    }
+  }
+
+  private boolean append(JsonObject line) {
+    try {
+      out.write(Main.gson.toJson(line));
+      out.write('\n');
+      out.flush();
+      return true;
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.configError, e, "Failed to write the batch cache " + file + ", reading batches from the terminal every time.");
+      disable();
+      return false;
+    }
+  }
+
+  private void disable() {
+    size = 0;
+    last = null;
+    receipt = null;
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // Already failing, nothing more to do with it.
+      }
+    }
+    out = null;
+  }
+
+  private void load() throws IOException {
+    if (!file.exists()) return;
+    JsonElement[] lastEntry = {null};
+    long accepted = scan(line -> {
+      if (receipt != null) return false;
+      if (line.has("entry")) {
+        lastEntry[0] = line.get("entry");
+        size++;
+        return true;
+      }
+      if (line.has("receipt")) {
+        receipt = new ArrayList<>(Arrays.asList(Main.gson.fromJson(line.get("receipt"), EcrPrintoutLine[].class)));
+        return true;
+      }
+      return false;
+    });
+    if (lastEntry[0] != null) last = Main.gson.fromJson(lastEntry[0], TransactionSnapshot.class);
+    if (accepted < file.length()) {
+      // A line torn by a crash, or one after it. Cut it off so the next entry starts on a clean line.
+      try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+        truncate.setLength(accepted);
+      }
+    }
+    if (size > 0) {
+      Log.info("Batch cache " + file.getName() + " holds " + size + " transactions" + (receipt != null ? " and the receipt." : "."));
+    }
+  }
+
+  // Reads the file a line at a time until the visitor turns a line down or a line can't be parsed. Returns the number
+  // of bytes taken up by the accepted lines.
+  private long scan(Predicate<JsonObject> visitor) throws IOException {
+    long accepted = 0;
+    long position = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      int b;
+      while ((b = in.read()) >= 0) {
+        position++;
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        JsonObject object = parse(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        line.reset();
+        if (object == null || !visitor.test(object)) break;
+        accepted = position;
+      }
+    }
+    return accepted;
+  }
+
+  private static JsonObject parse(String line) {
+    try {
+      return Main.gson.fromJson(line, JsonObject.class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+}
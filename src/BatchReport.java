@@ -0,0 +1,27 @@
+import ecrlib.api.EcrPrintoutLine;
+
+import java.util.List;
+
+public class BatchReport {
+  // What each entry of rows holds, in order. Amounts are in minor units.
+  public static final String[] ROW_COLUMNS = {"transactionNumber", "cardType", "pan", "currencyCode", "amount", "type", "authorisationType", "date", "time"};
+
+  public List<EcrPrintoutLine> receipt;
+  public List<TransactionSnapshot> transactions;
+  public Integer transactionCount;
+  public List<BatchAggregator.Total> totals;
+  public Integer invalidAmounts;
+  public String[] columns;
+  public List<Object[]> rows;
+
+  static Object[] row(TransactionSnapshot transaction) {
+    Long amount;
+    try {
+      amount = BatchAggregator.parseAmount(transaction.amount);
+    } catch (NumberFormatException | ArithmeticException e) {
+      amount = null;
+    }
+    return new Object[] {transaction.transactionNumber, transaction.cardType, transaction.pan, transaction.currencyCode,
+            amount, transaction.type, transaction.authorisationType, transaction.date, transaction.time};
+  }
+}
@@ -0,0 +1,72 @@
+import com.google.gson.JsonParseException;
+import models.EPOSMessage;
+import models.ErrorType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Splits the binary EPOS byte stream into frames: one byte frame kind, a four byte big-endian payload length and a CBOR
+// payload. Used instead of FrameDecoder once a connection has negotiated the binary protocol. One instance per connection.
+public class BinaryFrameDecoder {
+  // A callback frame, or any message from EPOS.
+  public static final byte FRAME_MESSAGE = 0;
+  // The final reply to a request, what EOT ends on the JSON link.
+  public static final byte FRAME_FINAL = 1;
+  public static final int HEADER_LENGTH = 5;
+  private static final int MAX_FRAME_LENGTH = 1 << 20;
+
+  private final byte[] header = new byte[HEADER_LENGTH];
+  private int headerLength;
+  private byte[] payload;
+  private int payloadLength;
+  private int skipping;
+
+  // Decodes every complete frame in the buffer. A null entry means EPOS sent an empty frame to end the session.
+  public void decode(ByteBuffer buffer, List<EPOSMessage> out) {
+    while (buffer.hasRemaining()) {
+      if (skipping > 0) {
+        int skipped = Math.min(skipping, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        skipping -= skipped;
+        continue;
+      }
+
+      if (headerLength < HEADER_LENGTH) {
+        header[headerLength++] = buffer.get();
+        if (headerLength < HEADER_LENGTH) continue;
+
+        int length = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+          ErrorHandler.error(ErrorType.eposConnectionError, "Frame from EPOS exceeded " + MAX_FRAME_LENGTH + " bytes, discarding it.");
+          skipping = length < 0 ? Integer.MAX_VALUE : length;
+          headerLength = 0;
+          continue;
+        }
+        if (length == 0) {
+          out.add(null);
+          headerLength = 0;
+          continue;
+        }
+        payload = new byte[length];
+        payloadLength = 0;
+      }
+
+      int chunk = Math.min(payload.length - payloadLength, buffer.remaining());
+      buffer.get(payload, payloadLength, chunk);
+      payloadLength += chunk;
+      if (payloadLength == payload.length) {
+        emit(out);
+        headerLength = 0;
+        payload = null;
+      }
+    }
+  }
+
+  private void emit(List<EPOSMessage> out) {
+    try {
+      out.add(Main.gson.fromJson(Cbor.decode(payload, 0, payload.length), EPOSMessage.class));
+    } catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Invalid message received from EPOS");
+    }
+  }
+}
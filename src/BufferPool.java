@@ -0,0 +1,19 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class BufferPool {
+  public static final int BUFFER_SIZE = 8192;
+  private static final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(64);
+
+  public static ByteBuffer acquire() {
+    ByteBuffer buffer = pool.poll();
+    if (buffer == null) return ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.clear();
+    return buffer;
+  }
+
+  public static void release(ByteBuffer buffer) {
+    if (buffer.capacity() != BUFFER_SIZE || !buffer.hasArray()) return;
+    pool.offer(buffer);
+  }
+}
@@ -0,0 +1,61 @@
+import models.EPOSMessage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CallbackExchange {
+  // Shared by every terminal so a callback id identifies both the prompt and the terminal that sent it.
+  private static final AtomicInteger lastId = new AtomicInteger();
+
+  private final Object lock = new Object();
+  private Integer pendingId;
+  private EPOSMessage response;
+
+  // Opens a new prompt and returns the id EPOS must echo back in its Response.
+  public int open() {
+    synchronized (lock) {
+      pendingId = lastId.incrementAndGet();
+      response = null;
+      return pendingId;
+    }
+  }
+
+  public boolean isWaiting(Integer id) {
+    synchronized (lock) {
+      return pendingId != null && response == null && (id == null || id.equals(pendingId));
+    }
+  }
+
+  // Blocks until the response for the given prompt arrives, or returns null on timeout.
+  public EPOSMessage await(int id, long timeoutMillis) {
+    synchronized (lock) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      try {
+        while (response == null && pendingId != null && pendingId == id) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) break;
+          lock.wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      EPOSMessage result = (pendingId != null && pendingId == id) ? response : null;
+      if (pendingId != null && pendingId == id) {
+        pendingId = null;
+        response = null;
+      }
+      return result;
+    }
+  }
+
+  // Hands a Response from EPOS to the waiting prompt. Returns false if nothing is waiting for it.
+  public boolean offer(EPOSMessage msg) {
+    synchronized (lock) {
+      if (pendingId == null || response != null) return false;
+      if (msg.callbackId != null && !msg.callbackId.equals(pendingId)) return false;
+      response = msg;
+      lock.notifyAll();
+      return true;
+    }
+  }
+}
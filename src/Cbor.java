@@ -0,0 +1,384 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+// CBOR (RFC 8949) for the binary EPOS protocol. Messages are written through Gson's type adapters and read through its
+// tree, so the field names are the same as on the JSON link. Only what JSON can hold is supported: byte strings are rejected, tags are skipped.
+public class Cbor {
+  private static final int MAX_DEPTH = 64;
+
+  public static byte[] encode(JsonElement element) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    Main.gson.toJson(element, newWriter(out));
+    return out.toByteArray();
+  }
+
+  // A JsonWriter that writes CBOR to the stream as Gson walks the message, so nothing is built up first. Maps and arrays
+  // are written with indefinite length, since their size isn't known until they end.
+  public static JsonWriter newWriter(OutputStream out) {
+    return new StreamWriter(out);
+  }
+
+  public static JsonElement decode(byte[] data, int offset, int length) {
+    Reader reader = new Reader(data, offset, offset + length);
+    JsonElement element = reader.read(0);
+    if (reader.position != reader.end) {
+      throw new JsonParseException("Trailing bytes after CBOR item");
+    }
+    return element;
+  }
+
+  private static void writeNumber(OutputStream out, Number number) throws IOException {
+    if (number instanceof Double || number instanceof Float) {
+      writeDouble(out, number.doubleValue());
+      return;
+    }
+    if (number instanceof LazilyParsedNumber || number instanceof BigDecimal || number instanceof BigInteger) {
+      try {
+        writeLong(out, new BigDecimal(number.toString()).longValueExact());
+      } catch (ArithmeticException e) {
+        writeDouble(out, number.doubleValue());
+      }
+      return;
+    }
+    writeLong(out, number.longValue());
+  }
+
+  private static void writeLong(OutputStream out, long value) throws IOException {
+    if (value >= 0) writeHead(out, 0, value);
+    else writeHead(out, 1, -1 - value);
+  }
+
+  private static void writeDouble(OutputStream out, double value) throws IOException {
+    out.write(0xfb);
+    long bits = Double.doubleToLongBits(value);
+    for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (bits >>> shift));
+  }
+
+  private static void writeString(OutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeHead(out, 3, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeHead(OutputStream out, int major, long argument) throws IOException {
+    int type = major << 5;
+    if (argument < 24) {
+      out.write(type | (int) argument);
+    }
+    else if (argument < 0x100) {
+      out.write(type | 24);
+      out.write((int) argument);
+    }
+    else if (argument < 0x10000) {
+      out.write(type | 25);
+      out.write((int) (argument >>> 8));
+      out.write((int) argument);
+    }
+    else if (argument < 0x100000000L) {
+      out.write(type | 26);
+      for (int shift = 24; shift >= 0; shift -= 8) out.write((int) (argument >>> shift));
+    }
+    else {
+      out.write(type | 27);
+      for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (argument >>> shift));
+    }
+  }
+
+  private static class StreamWriter extends JsonWriter {
+    // JsonWriter needs a character stream, every method that would use it is overridden.
+    private static final Writer UNUSED = new Writer() {
+      @Override
+      public void write(char[] buffer, int offset, int length) {
+        throw new UnsupportedOperationException("CBOR is written to the byte stream");
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    private final OutputStream out;
+    // Held back until its value is written, so a null field can be left out the way Gson leaves it out of JSON.
+    private String deferredName;
+
+    StreamWriter(OutputStream out) {
+      super(UNUSED);
+      this.out = out;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+      writeDeferredName();
+      out.write(0x9f);
+      return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+      out.write(0xff);
+      return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+      writeDeferredName();
+      out.write(0xbf);
+      return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+      if (deferredName != null) throw new IllegalStateException("Name " + deferredName + " has no value");
+      out.write(0xff);
+      return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) {
+      if (name == null) throw new NullPointerException("name == null");
+      if (deferredName != null) throw new IllegalStateException("Name " + deferredName + " has no value");
+      deferredName = name;
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+      if (value == null) return nullValue();
+      writeDeferredName();
+      writeString(out, value);
+      return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) {
+      throw new UnsupportedOperationException("Raw JSON can't be written as CBOR");
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+      if (deferredName != null && !getSerializeNulls()) {
+        deferredName = null;
+        return this;
+      }
+      writeDeferredName();
+      out.write(0xf6);
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+      writeDeferredName();
+      out.write(value ? 0xf5 : 0xf4);
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) throws IOException {
+      return value == null ? nullValue() : value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(float value) throws IOException {
+      return value((double) value);
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+      writeDeferredName();
+      writeDouble(out, value);
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+      writeDeferredName();
+      writeLong(out, value);
+      return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+      if (value == null) return nullValue();
+      writeDeferredName();
+      writeNumber(out, value);
+      return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void writeDeferredName() throws IOException {
+      if (deferredName == null) return;
+      writeString(out, deferredName);
+      deferredName = null;
+    }
+  }
+
+  private static class Reader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    Reader(byte[] data, int position, int end) {
+      this.data = data;
+      this.position = position;
+      this.end = end;
+    }
+
+    JsonElement read(int depth) {
+      if (depth > MAX_DEPTH) throw new JsonParseException("CBOR nested too deeply");
+      int initial = next();
+      int major = initial >>> 5;
+      int info = initial & 0x1f;
+
+      switch (major) {
+        case 0:
+          return number(argument(info));
+        case 1:
+          return number(-1 - argument(info));
+        case 2:
+          throw new JsonParseException("CBOR byte strings are not supported");
+        case 3:
+          return new JsonPrimitive(readString(info));
+        case 4: {
+          JsonArray array = new JsonArray();
+          if (info == 31) {
+            while (peek() != 0xff) array.add(read(depth + 1));
+            position++;
+          } else {
+            for (long i = argument(info); i > 0; i--) array.add(read(depth + 1));
+          }
+          return array;
+        }
+        case 5: {
+          JsonObject object = new JsonObject();
+          if (info == 31) {
+            while (peek() != 0xff) readEntry(object, depth);
+            position++;
+          } else {
+            for (long i = argument(info); i > 0; i--) readEntry(object, depth);
+          }
+          return object;
+        }
+        case 6:
+          // Tags (dates, bignums...) carry nothing JSON can keep, use the tagged item as it is.
+          argument(info);
+          return read(depth + 1);
+        default:
+          return simple(info);
+      }
+    }
+
+    private void readEntry(JsonObject object, int depth) {
+      JsonElement key = read(depth + 1);
+      if (!key.isJsonPrimitive()) throw new JsonParseException("CBOR map keys must be strings or numbers");
+      object.add(key.getAsString(), read(depth + 1));
+    }
+
+    private String readString(int info) {
+      if (info != 31) {
+        int length = length(argument(info));
+        String value = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+      }
+      // Indefinite length: definite length chunks up to a break byte.
+      StringBuilder value = new StringBuilder();
+      while (peek() != 0xff) {
+        int chunk = next();
+        if (chunk >>> 5 != 3 || (chunk & 0x1f) == 31) throw new JsonParseException("Bad CBOR string chunk");
+        value.append(readString(chunk & 0x1f));
+      }
+      position++;
+      return value.toString();
+    }
+
+    private JsonElement simple(int info) {
+      switch (info) {
+        case 20:
+          return new JsonPrimitive(false);
+        case 21:
+          return new JsonPrimitive(true);
+        case 22:
+        case 23:
+          return JsonNull.INSTANCE;
+        case 25:
+          return new JsonPrimitive(halfToDouble((int) argument(info)));
+        case 26:
+          return new JsonPrimitive(Float.intBitsToFloat((int) argument(info)));
+        case 27:
+          return new JsonPrimitive(Double.longBitsToDouble(argument(info)));
+        default:
+          throw new JsonParseException("Unsupported CBOR simple value " + info);
+      }
+    }
+
+    private long argument(int info) {
+      if (info < 24) return info;
+      int bytes;
+      switch (info) {
+        case 24: bytes = 1; break;
+        case 25: bytes = 2; break;
+        case 26: bytes = 4; break;
+        case 27: bytes = 8; break;
+        default: throw new JsonParseException("Bad CBOR length " + info);
+      }
+      long value = 0;
+      for (int i = 0; i < bytes; i++) value = (value << 8) | next();
+      return value;
+    }
+
+    private int length(long argument) {
+      if (argument < 0 || argument > end - position) throw new JsonParseException("CBOR item runs past the end of the frame");
+      return (int) argument;
+    }
+
+    private int next() {
+      if (position >= end) throw new JsonParseException("CBOR item runs past the end of the frame");
+      return data[position++] & 0xff;
+    }
+
+    private int peek() {
+      if (position >= end) throw new JsonParseException("CBOR item runs past the end of the frame");
+      return data[position] & 0xff;
+    }
+
+    private static JsonPrimitive number(long value) {
+      return new JsonPrimitive(value);
+    }
+
+    private static double halfToDouble(int half) {
+      int exponent = (half >>> 10) & 0x1f;
+      int mantissa = half & 0x3ff;
+      double value;
+      if (exponent == 0) value = mantissa * Math.pow(2, -24);
+      else if (exponent == 31) value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+      else value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+      return (half & 0x8000) != 0 ? -value : value;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Buffers an outgoing frame in pooled chunks and hands each full chunk to the connection as it fills.
+// A held frame keeps its chunks until finish, so a length written in front of it can be filled in afterwards.
+public class ChannelFrameWriter extends OutputStream {
+  private final EPOSConnection connection;
+  private ByteBuffer current;
+  private boolean holding;
+  private final List<ByteBuffer> held = new ArrayList<>();
+
+  public ChannelFrameWriter(EPOSConnection connection) {
+    this.connection = connection;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (current == null) current = BufferPool.acquire();
+    current.put((byte) b);
+    if (!current.hasRemaining()) emit();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (current == null) current = BufferPool.acquire();
+      int chunk = Math.min(len, current.remaining());
+      current.put(b, off, chunk);
+      off += chunk;
+      len -= chunk;
+      if (!current.hasRemaining()) emit();
+    }
+  }
+
+  // Starts a frame that is only handed over on finish.
+  public void hold() {
+    holding = true;
+  }
+
+  // Fills in a four byte big-endian length at the given offset of a held frame: the number of bytes after it.
+  public void putLength(int offset) {
+    long size = current != null ? current.position() : 0;
+    for (ByteBuffer chunk : held) size += chunk.position();
+    long length = size - offset - 4;
+    for (int i = 0; i < 4; i++) {
+      put(offset + i, (byte) (length >>> (24 - 8 * i)));
+    }
+  }
+
+  // Ends the frame, handing over whatever is left in the current chunk.
+  public void finish() throws IOException {
+    holding = false;
+    try {
+      for (int i = 0; i < held.size(); i++) {
+        ByteBuffer chunk = held.get(i);
+        held.set(i, null);
+        chunk.flip();
+        connection.enqueue(chunk);
+      }
+    } finally {
+      releaseHeld();
+    }
+    if (current != null && current.position() > 0) {
+      emit();
+    }
+  }
+
+  // Drops a partly written frame, e.g. when encoding failed half way.
+  public void discard() {
+    holding = false;
+    releaseHeld();
+    if (current != null) {
+      BufferPool.release(current);
+      current = null;
+    }
+  }
+
+  private void put(long index, byte value) {
+    for (ByteBuffer chunk : held) {
+      if (index < chunk.position()) {
+        chunk.put((int) index, value);
+        return;
+      }
+      index -= chunk.position();
+    }
+    current.put((int) index, value);
+  }
+
+  private void releaseHeld() {
+    for (ByteBuffer chunk : held) {
+      if (chunk != null) BufferPool.release(chunk);
+    }
+    held.clear();
+  }
+
+  private void emit() throws IOException {
+    ByteBuffer buffer = current;
+    current = null;
+    if (holding) {
+      held.add(buffer);
+      return;
+    }
+    buffer.flip();
+    connection.enqueue(buffer);
+  }
+}
@@ -1,9 +1,13 @@
 import com.google.gson.Gson;
 import models.Config;
 import models.ErrorType;
+import models.SimulatorConfig;
+import models.TerminalConfig;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class ConfigHandler {
@@ -13,7 +17,34 @@ public class ConfigHandler {
       List<String> res = Files.readAllLines(Paths.get("config.json"));
       String content = String.join("\n", res);
       Gson gson = new Gson();
-      return gson.fromJson(content, Config.class);
+      Config config = gson.fromJson(content, Config.class);
+      if (config.callbackTimeout == null) config.callbackTimeout = 120000;
+      if (config.terminalQueueSize == null) config.terminalQueueSize = 4;
+      if (config.deferReceipts == null) config.deferReceipts = false;
+      if (config.logLevel == null) config.logLevel = "INFO";
+      config.logLevel = Log.Level.valueOf(config.logLevel.toUpperCase()).name();
+      if (config.commLog == null) config.commLog = true;
+      if (config.journalDir == null) config.journalDir = "journal";
+      if (config.idempotencyTtl == null) config.idempotencyTtl = 600000;
+      if (config.statusMaxAge == null) config.statusMaxAge = 30000;
+      if (config.lastMaxAge == null) config.lastMaxAge = 5000;
+      if (config.probeInterval == null) config.probeInterval = 20000;
+      if (config.eventWindow == null) config.eventWindow = 100;
+      if (config.reconnectMaxDelay == null) config.reconnectMaxDelay = 60000;
+      if (config.backend == null) config.backend = "ecrlib";
+      if (config.simulator == null) config.simulator = new SimulatorConfig();
+      if (config.simulator.approvalLatency == null) config.simulator.approvalLatency = 1500;
+      if (config.simulator.latencyJitter == null) config.simulator.latencyJitter = 500;
+      if (config.simulator.callbacks == null) config.simulator.callbacks = Arrays.asList("waitForCard", "waitForPin");
+      if (config.simulator.declineRate == null) config.simulator.declineRate = 0.05;
+      if (config.simulator.failureRate == null) config.simulator.failureRate = 0.0;
+      if (config.simulator.batchSize == null) config.simulator.batchSize = 0;
+      if (config.simulator.batchEntryLatency == null) config.simulator.batchEntryLatency = 0;
+      if (config.terminals == null || config.terminals.isEmpty()) {
+        // Single terminal configs keep the terminal settings at the top level.
+        config.terminals = Collections.singletonList(new TerminalConfig(config.terminalIp, config.terminalPort, config.terminalTimeout, config.tid, null));
+      }
+      return config;
     } catch (Exception e) {
       // Crash out of app - Failed to load config file
       ErrorHandler.error(ErrorType.configError, e, "Failed to load config.");
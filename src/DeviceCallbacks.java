@@ -1,40 +1,42 @@
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import ecrlib.api.EcrCallbackDataInput;
 import ecrlib.api.EcrCallbacks;
+import ecrlib.api.EcrPrintoutLine;
 import ecrlib.api.enums.EcrTerminalStatus;
 import models.ResponseMessage;
 import models.EPOSMessage;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 public class DeviceCallbacks implements EcrCallbacks {
-  private final DevicePrintoutHandler printoutHandler;
+  private final TerminalBackend terminal;
   private final DeviceHandler deviceHandler;
 
-  public DeviceCallbacks(DevicePrintoutHandler printoutHandler, DeviceHandler deviceHandler) {
-    this.printoutHandler = printoutHandler;
+  public DeviceCallbacks(TerminalBackend terminal, DeviceHandler deviceHandler) {
+    this.terminal = terminal;
     this.deviceHandler = deviceHandler;
   }
 
   @Override
   public void handleDevLog(String s) {
-    System.out.println(s);
+    Log.info(s);
   }
 
   @Override
   public void handleCommLog(String s) {
-    System.out.println(s);
-
+    Log.comm(s);
   }
 
   @Override
   public void handleBusLog(String s) {
-    System.out.println(s);
+    Log.info(s);
   }
 
   @Override
   public void handleStatusChange(EcrTerminalStatus ecrTerminalStatus) {
+    Metrics.increment("evo_terminal_status_changes_total", Metrics.labels("status", ecrTerminalStatus.name()));
+    this.deviceHandler.statusChanged(ecrTerminalStatus);
     ResponseMessage msg = new ResponseMessage("handleStatusChange");
     msg.prompt = ecrTerminalStatus.name();
     this.deviceHandler.sendCallbackMessage(msg);
@@ -42,9 +44,9 @@ public class DeviceCallbacks implements EcrCallbacks {
 
   @Override
   public boolean askForSignature(String prompt) {
-    JsonArray merchant;
+    List<EcrPrintoutLine> merchant;
     try {
-      merchant = printoutHandler.generateMerchantPrintout();
+      merchant = terminal.generateMerchantPrintout();
     }
     catch (Exception e) {
       ResponseMessage error = new ResponseMessage("error");
@@ -55,37 +57,25 @@ public class DeviceCallbacks implements EcrCallbacks {
 
     ResponseMessage message = new ResponseMessage("askForSignature");
     message.prompt = prompt;
-    JsonObject valueObject = new JsonObject();
-    valueObject.add("merchant", merchant);
-    message.value = valueObject;
-    this.deviceHandler.sendCallbackMessage(message);
-
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return Objects.equals(resp, "true");
+    message.value = Collections.singletonMap("merchant", merchant);
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(message);
+    return response != null && Objects.equals(response.value, "true");
   }
 
   @Override
   public boolean askForCopy(String prompt) {
     ResponseMessage msg = new ResponseMessage("askForCopy");
     msg.prompt = prompt;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return Objects.equals(resp, "true");
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return response != null && Objects.equals(response.value, "true");
   }
 
   @Override
   public int askForCurrency(String[] options) {
     ResponseMessage msg = new ResponseMessage("askForCurrency");
     msg.values = options;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return Integer.parseInt(resp);
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return parseSelection(response);
   }
 
   @Override
@@ -93,11 +83,8 @@ public class DeviceCallbacks implements EcrCallbacks {
     ResponseMessage msg = new ResponseMessage("askForSelection");
     msg.prompt = prompt;
     msg.values = options;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return Integer.parseInt(resp);
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return parseSelection(response);
   }
 
   @Override
@@ -129,21 +116,15 @@ public class DeviceCallbacks implements EcrCallbacks {
   public void showOkScreen(String prompt) {
     ResponseMessage msg = new ResponseMessage("showOkScreen");
     msg.prompt = prompt;
-    this.deviceHandler.sendCallbackMessage(msg);
-    this.deviceHandler.waitForCallbackResponse();
-    this.deviceHandler.clearCallbackResponse();
-    return;
+    this.deviceHandler.waitForCallbackResponse(msg);
   }
 
   @Override
   public boolean showYesNoScreen(String prompt) {
     ResponseMessage msg = new ResponseMessage("showYesNoScreen");
     msg.prompt = prompt;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return Objects.equals(resp, "true");
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return response != null && Objects.equals(response.value, "true");
   }
 
   @Override
@@ -165,11 +146,8 @@ public class DeviceCallbacks implements EcrCallbacks {
     msg.prompt = prompt;
     msg.minLength = minLength;
     msg.maxLength = maxLength;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return resp;
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return response != null ? response.value : null;
   }
 
   @Override
@@ -184,10 +162,9 @@ public class DeviceCallbacks implements EcrCallbacks {
     String resp = null;
 
     while (!isDataCorrect) {
-      this.deviceHandler.sendCallbackMessage(msg);
-      EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
+      EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+      if (response == null) return null; // No answer from the cashier, cancel the input
       resp = response.value;
-      this.deviceHandler.clearCallbackResponse();
       isDataCorrect = true;
       for (int i = 0; i < resp.length(); i++) {
         if (!ecrCallbackDataInput.isCharacterAllowed(resp.charAt(i))) {
@@ -209,10 +186,17 @@ public class DeviceCallbacks implements EcrCallbacks {
     msg.prompt = prompt;
     msg.minLength = minLength;
     msg.maxLength = maxLength;
-    this.deviceHandler.sendCallbackMessage(msg);
-    EPOSMessage response = this.deviceHandler.waitForCallbackResponse();
-    String resp = response.value;
-    this.deviceHandler.clearCallbackResponse();
-    return resp;
+    EPOSMessage response = this.deviceHandler.waitForCallbackResponse(msg);
+    return response != null ? response.value : null;
+  }
+
+  private int parseSelection(EPOSMessage response) {
+    if (response == null) return -1; // No answer from the cashier, cancel the selection
+    try {
+      return Integer.parseInt(response.value);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
   }
 }
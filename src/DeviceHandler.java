@@ -1,116 +1,158 @@
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import ecrlib.api.enums.*;
 import ecrlib.api.*;
-import ecrlib.api.tlv.Tag;
 import models.ResponseMessage;
 import models.Config;
 import models.ErrorType;
 import models.EPOSMessage;
+import models.TerminalConfig;
 
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class DeviceHandler {
 
-  private EcrPaymentTerminal terminalComm;
+  private TerminalBackend terminalComm;
   private EcrCallbacks callbacks;
-  private EcrCallbacksManager callbacksManager;
-  private DevicePrintoutHandler printoutHandler;
-  private EcrTerminalStatus terminalStatus;
 
-  private DataOutputStream eposOutput;
+  private volatile EPOSConnection eposOutput;
+  // Set while a Sale, Refund, Reversal, Reconcile, Update or Continue has the terminal.
+  private volatile boolean mutating;
+  // Reply to the last Last request, good for lastMaxAge and until a mutating request finishes.
+  private volatile ResponseMessage lastTransaction;
+  private volatile long lastTransactionAt;
+  private final long lastMaxAgeNanos;
+  // Id of the EPOS request the terminal is working on, echoed on every callback frame so EPOS can match them up.
+  private volatile Integer eposRequestId;
   public final Object eposLock = new Object();
-  public final Object callbackLock = new Object();
-  private EPOSMessage eposResponse;
+  private final CallbackExchange callbackExchange = new CallbackExchange();
+  private final long callbackTimeout;
+  private final TerminalConfig terminalConfig;
+  private final TerminalExecutor executor;
+  private final ReceiptStore receiptStore;
+  private final boolean deferReceipts;
+  // Dropped if writing it fails, the service carries on without it rather than hold up a reply.
+  private volatile Journal journal;
+  private final BatchCache batchCache;
+  private final IdempotencyCache idempotencyCache;
+  private final TerminalStatusCache statusCache;
+  private final LinkSupervisor supervisor;
+  private final EventCoalescer events;
+  private String pendingReceiptHandle;
+
+  public DeviceHandler(Config config, TerminalConfig terminalConfig) {
+    this.callbackTimeout = config.callbackTimeout;
+    this.terminalConfig = terminalConfig;
+    this.receiptStore = new ReceiptStore(String.valueOf(terminalConfig.tid));
+    this.deferReceipts = config.deferReceipts;
+    this.journal = openJournal(config.journalDir, terminalConfig);
+    this.batchCache = new BatchCache(new File(config.journalDir), "terminal-" + terminalConfig.tid);
+    this.idempotencyCache = new IdempotencyCache(config.idempotencyTtl);
+    this.statusCache = new TerminalStatusCache(config.statusMaxAge);
+    this.lastMaxAgeNanos = config.lastMaxAge * 1_000_000L;
+    this.events = new EventCoalescer(config.eventWindow, this::writeCallbackMessage);
+    this.supervisor = new LinkSupervisor(this, config.probeInterval, config.reconnectMaxDelay);
+    this.executor = new TerminalExecutor("terminal-" + terminalConfig.tid, config.terminalQueueSize);
+    terminalComm = TerminalBackend.create(config);
+    callbacks = new DeviceCallbacks(terminalComm, this);
+    terminalComm.registerCallbacks(callbacks);
+  }
 
-  static {
-    try {
-      System.loadLibrary("libecrjava");
-    }
-    catch (UnsatisfiedLinkError linkError) {
-      System.loadLibrary("ecrjava");
-    }
+  public TerminalConfig getTerminalConfig() {
+    return terminalConfig;
   }
 
-  public DeviceHandler() {
-    terminalComm = new EcrPaymentTerminal();
-    printoutHandler = new DevicePrintoutHandler(terminalComm);
-    callbacks = new DeviceCallbacks(printoutHandler, this);
-    callbacksManager = new EcrCallbacksManager(callbacks);
-    callbacksManager.register();
+  public TerminalExecutor getExecutor() {
+    return executor;
+  }
+
+  public LinkSupervisor getSupervisor() {
+    return supervisor;
+  }
 
-    PrintoutHandler.setupDictionaryFromFile("EN.LNG");
-    PrintoutHandler.setUsingSignatureVerifiedLine(true);
+  public IdempotencyCache getIdempotencyCache() {
+    return idempotencyCache;
   }
 
-  public void setupEPOSCallback(DataOutputStream out) {
+  public void setupEPOSCallback(EPOSConnection out, Integer requestId) {
+    // Anything still held back belongs to the previous request. Flushed outside eposLock, the coalescer takes it to send.
+    events.flush();
+    boolean newConnection = out != eposOutput;
     synchronized (eposLock) {
       this.eposOutput = out;
+      this.eposRequestId = requestId;
     }
+    if (newConnection) events.forget();
   }
 
-  private ResponseMessage lastMsg;
   public void sendCallbackMessage(ResponseMessage msg) {
-    if (lastMsg != null && Objects.equals(msg.type, lastMsg.type) && Objects.equals(msg.prompt, lastMsg.prompt)) {
-      return;
-    }
+    events.publish(msg);
+  }
+
+  // Sends any status or screen events still held back, called before the final reply so none arrive after it.
+  public void flushCallbackMessages() {
+    events.flush();
+  }
 
-    lastMsg = msg;
-    String json = Main.gson.toJson(msg) + (char) 3;
-    System.out.println(json);
+  private void writeCallbackMessage(ResponseMessage msg) {
+    Log.info(msg.type + (msg.prompt != null ? " - " + msg.prompt : ""));
     if (this.eposOutput == null) {
       ErrorHandler.error(ErrorType.eposConnectionError, "EPOS connection not set up.");
     }
     else {
-      postToEPOS(json.getBytes());
+      postToEPOS(msg, EPOSConnection.CALLBACK_TERMINATOR);
     }
   }
 
-  public void postToEPOS(byte[] data) {
+  public void postToEPOS(ResponseMessage msg, byte[] terminator) {
     try {
       synchronized (eposLock) {
-        this.eposOutput.write(data);
+        msg.requestId = eposRequestId;
+        this.eposOutput.send(msg, terminator);
       }
     } catch (IOException e) {
       ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while sending message to EPOS"); // Logs error locally if the socket dies.
     }
   }
 
-  public EPOSMessage waitForCallbackResponse() {
-    while (true) {
-      synchronized (callbackLock) {
-        if (eposResponse == null) continue;
-        return eposResponse;
-      }
-    }
+  public EPOSMessage waitForCallbackResponse(ResponseMessage prompt) {
+    return waitForCallbackResponse(prompt, callbackTimeout);
   }
 
-  public void setCallbackResponse(EPOSMessage msg) {
-    while (true) {
-      synchronized (callbackLock) {
-        if (eposResponse != null) continue;
-        this.eposResponse = msg;
-        return;
-      }
+  // Sends a prompt that needs an answer and blocks until EPOS responds to it, or returns null on timeout.
+  public EPOSMessage waitForCallbackResponse(ResponseMessage prompt, long timeoutMillis) {
+    long start = System.nanoTime();
+    int callbackId = callbackExchange.open();
+    prompt.callbackId = callbackId;
+    events.publish(prompt);
+
+    EPOSMessage response = callbackExchange.await(callbackId, timeoutMillis);
+    Metrics.observe("evo_callback_seconds", Metrics.labels("callback", prompt.type, "answered", String.valueOf(response != null)), start);
+    if (response == null) {
+      ErrorHandler.error(ErrorType.eposConnectionError, "Timed out waiting for EPOS response to " + prompt.type + ".");
     }
+    return response;
+  }
+
+  public boolean isWaitingForCallback(Integer callbackId) {
+    return callbackExchange.isWaiting(callbackId);
   }
 
-  public void clearCallbackResponse() {
-    synchronized (callbackLock) {
-      this.eposResponse = null;
+  public void setCallbackResponse(EPOSMessage msg) {
+    if (!callbackExchange.offer(msg)) {
+      ErrorHandler.error(ErrorType.eposConnectionError, "Unexpected response from EPOS, no prompt is waiting for it.");
     }
   }
 
-  public boolean connectToTerminal(String terminalIp, int terminalPort, int timeout) {
-    EcrStatus status = terminalComm.setTcpIpLink(terminalIp, terminalPort, timeout);
+  public boolean connectToTerminal() {
+    EcrStatus status = terminalComm.connect(terminalConfig);
     if (status != EcrStatus.ECR_OK) {
-      System.out.println("Tcp connection error.");
+      Log.warn("Tcp connection error.");
       return false;
     }
     return true;
@@ -120,21 +162,61 @@ public class DeviceHandler {
     return terminalComm.getTerminalStatus();
   }
 
+  // Called by the supervisor on the terminal worker while the terminal is idle.
+  public boolean probeLink() {
+    EcrTerminalStatus status = Metrics.timeStage("Probe", "readTerminalStatus", terminalComm::readTerminalStatus);
+    if (status == null) return false;
+    statusCache.update(status);
+    return true;
+  }
+
+  public void linkDown() {
+    statusCache.invalidate();
+  }
+
+  public void statusChanged(EcrTerminalStatus status) {
+    statusCache.update(status);
+  }
+
+  public void mutationStarted() {
+    mutating = true;
+  }
+
+  public void mutationFinished() {
+    mutating = false;
+    lastTransaction = null;
+  }
+
+  // Answers a Status request from the status the terminal last reported, or returns null if that is too old.
+  // While a transaction is running the terminal reports every change, so its status is used whatever its age.
+  // Safe to call from any thread, it never touches the terminal link.
+  public ResponseMessage getCachedTerminalState() {
+    EcrTerminalStatus status = mutating ? statusCache.latest() : statusCache.fresh();
+    Metrics.increment("evo_status_cache_total", Metrics.labels("result", status != null ? "hit" : "miss"));
+    if (status == null) return null;
+    ResponseMessage response = new ResponseMessage("success");
+    response.status = status.name();
+    return response;
+  }
+
   public ResponseMessage getTerminalState() {
-    EcrTerminalStatus status = terminalComm.readTerminalStatus();
+    EcrTerminalStatus status = Metrics.timeStage("Status", "readTerminalStatus", terminalComm::readTerminalStatus);
     if (status == null) {
+      supervisor.linkFailed("status read failed");
+      statusCache.invalidate();
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when getting terminal status.";
       error.status = "TK_TERMINAL_CONNECTION_ERROR";
       return error;
     }
+    statusCache.update(status);
     ResponseMessage response = new ResponseMessage("success");
     response.status = status.name();
     return response;
   }
 
   public ResponseMessage testConnection() {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_TEST_CONNECTION);
+    EcrStatus status = Metrics.timeStage("Test", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_TEST_CONNECTION));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction type on terminal.";
@@ -142,7 +224,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.startTransaction();
+    status = Metrics.timeStage("Test", "startTransaction", terminalComm::startTransaction);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when testing connection to payment authorisation host.";
@@ -150,7 +232,7 @@ public class DeviceHandler {
       return error;
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
+    EcrTransactionResult result = Metrics.timeStage("Test", "readTransactionResult", terminalComm::readTransactionResult);
     if (result == null) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when getting result of connection test to payment authorisation host.";
@@ -163,7 +245,7 @@ public class DeviceHandler {
   }
 
   public ResponseMessage update() {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_TMS);
+    EcrStatus status = Metrics.timeStage("Update", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_TMS));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when updating terminal from TMS.";
@@ -171,12 +253,12 @@ public class DeviceHandler {
       return error;
     }
 
-    terminalComm.startTransaction();
+    Metrics.timeStage("Update", "startTransaction", terminalComm::startTransaction);
     return new ResponseMessage("success");
   }
 
   public ResponseMessage continueTransaction() {
-    EcrStatus status = terminalComm.continueTransaction();
+    EcrStatus status = Metrics.timeStage("Continue", "continueTransaction", terminalComm::continueTransaction);
     if (EcrStatus.ECR_OK != status) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when continuing transaction.";
@@ -184,56 +266,12 @@ public class DeviceHandler {
       return error;
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
-    if (result != null) {
-      try {
-        JsonArray merchant = printoutHandler.generateMerchantPrintout();
-        JsonArray customer = printoutHandler.generateCustomerPrintout();
-        ResponseMessage response = new ResponseMessage("success");
-        JsonObject valueObject = new JsonObject();
-        valueObject.add("merchant", merchant);
-        valueObject.add("customer", customer);
-        Tag cardType = terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME);
-        Tag transactionNumber = terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER);
-        valueObject.addProperty("cardType", new String(cardType.getData(), "Cp1250"));
-        valueObject.addProperty("transactionNumber", new String(transactionNumber.getData(), "Cp1250"));
-        valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-        valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("exchangeRate", terminalComm.readTransactionExchangeRate());
-        response.status = result.name();
-
-        response.value = valueObject;
-        return response;
-      }
-      catch (NullPointerException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when accessing tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (UnsupportedEncodingException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when decoding tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (Exception e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when getting printout.";
-        error.status = e.getMessage();
-        return error;
-      }
-    }
-    else {
-      ResponseMessage error = new ResponseMessage("error");
-      error.prompt = "Unexpected error when reading transaction result.";
-      return error;
-    }
+    EcrTransactionResult result = Metrics.timeStage("Continue", "readTransactionResult", terminalComm::readTransactionResult);
+    return buildTransactionResponse(result);
   }
 
   public ResponseMessage doSale(String amount) {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_SALE);
+    EcrStatus status = Metrics.timeStage("Sale", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_SALE));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction type.";
@@ -241,7 +279,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.setTransactionAmount(amount);
+    status = Metrics.timeStage("Sale", "setTransactionAmount", () -> terminalComm.setTransactionAmount(amount));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction amount.";
@@ -249,7 +287,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.startTransaction();
+    status = Metrics.timeStage("Sale", "startTransaction", terminalComm::startTransaction);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting starting transaction.";
@@ -258,58 +296,12 @@ public class DeviceHandler {
       // return emergencyProcedureForTransaction(true);
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
-
-    if (result != null) {
-      try {
-        JsonArray merchant = printoutHandler.generateMerchantPrintout();
-        JsonArray customer = printoutHandler.generateCustomerPrintout();
-        ResponseMessage response = new ResponseMessage("success");
-        JsonObject valueObject = new JsonObject();
-        valueObject.add("merchant", merchant);
-        valueObject.add("customer", customer);
-        Tag cardType = terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME);
-        Tag transactionNumber = terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER);
-        valueObject.addProperty("cardType", new String(cardType.getData(), "Cp1250"));
-        valueObject.addProperty("transactionNumber", new String(transactionNumber.getData(), "Cp1250"));
-        valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-        valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("exchangeRate", terminalComm.readTransactionExchangeRate());
-        response.status = result.name();
-
-        response.value = valueObject;
-        return response;
-      }
-      catch (NullPointerException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when accessing tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (UnsupportedEncodingException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when decoding tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (Exception e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when getting printout.";
-        error.status = e.getMessage();
-
-        return error;
-      }
-    }
-    else {
-      ResponseMessage error = new ResponseMessage("error");
-      error.prompt = "Unexpected error when reading transaction result.";
-      return error;
-    }
+    EcrTransactionResult result = Metrics.timeStage("Sale", "readTransactionResult", terminalComm::readTransactionResult);
+    return buildTransactionResponse(result);
   }
 
   public ResponseMessage doRefund(String amount) {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_REFUND);
+    EcrStatus status = Metrics.timeStage("Refund", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_REFUND));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction type.";
@@ -317,7 +309,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.setTransactionAmount(amount);
+    status = Metrics.timeStage("Refund", "setTransactionAmount", () -> terminalComm.setTransactionAmount(amount));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction amount.";
@@ -325,7 +317,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.startTransaction();
+    status = Metrics.timeStage("Refund", "startTransaction", terminalComm::startTransaction);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting starting transaction.";
@@ -334,59 +326,12 @@ public class DeviceHandler {
       // return emergencyProcedureForTransaction(true);
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
-
-    if (result != null) {
-      try {
-        JsonArray merchant = printoutHandler.generateMerchantPrintout();
-        JsonArray customer = printoutHandler.generateCustomerPrintout();
-        ResponseMessage response = new ResponseMessage("success");
-        JsonObject valueObject = new JsonObject();
-        valueObject.add("merchant", merchant);
-        valueObject.add("customer", customer);
-        Tag cardType = terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME);
-        Tag transactionNumber = terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER);
-
-        valueObject.addProperty("cardType", new String(cardType.getData(), "Cp1250"));
-        valueObject.addProperty("transactionNumber", new String(transactionNumber.getData(), "Cp1250"));
-        valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-        valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("exchangeRate", terminalComm.readTransactionExchangeRate());
-        response.status = result.name();
-
-        response.value = valueObject;
-        return response;
-      }
-      catch (NullPointerException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when accessing tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (UnsupportedEncodingException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when decoding tags.";
-        error.status = e.getMessage();
-        return error;
-      }
-      catch (Exception e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when getting printout.";
-        error.status = e.getMessage();
-
-        return error;
-      }
-    }
-    else {
-      ResponseMessage error = new ResponseMessage("error");
-      error.prompt = "Unexpected error when reading transaction result.";
-      return error;
-    }
+    EcrTransactionResult result = Metrics.timeStage("Refund", "readTransactionResult", terminalComm::readTransactionResult);
+    return buildTransactionResponse(result);
   }
 
   public ResponseMessage doReversal(String amount, String transactionId) {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_REVERSAL);
+    EcrStatus status = Metrics.timeStage("Reversal", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_REVERSAL));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction type.";
@@ -394,7 +339,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.setNumberOfTransactionToReverse(transactionId);
+    status = Metrics.timeStage("Reversal", "setNumberOfTransactionToReverse", () -> terminalComm.setNumberOfTransactionToReverse(transactionId));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction id.";
@@ -402,7 +347,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.setTransactionAmount(amount);
+    status = Metrics.timeStage("Reversal", "setTransactionAmount", () -> terminalComm.setTransactionAmount(amount));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting transaction amount.";
@@ -410,7 +355,7 @@ public class DeviceHandler {
       return error;
     }
 
-    status = terminalComm.startTransaction();
+    status = Metrics.timeStage("Reversal", "startTransaction", terminalComm::startTransaction);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when setting starting transaction.";
@@ -419,58 +364,201 @@ public class DeviceHandler {
       // return emergencyProcedureForTransaction(true);
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
-
-    if (result != null) {
-      try {
-        JsonArray merchant = printoutHandler.generateMerchantPrintout();
-        JsonArray customer = printoutHandler.generateCustomerPrintout();
-        ResponseMessage response = new ResponseMessage("success");
-        JsonObject valueObject = new JsonObject();
-        valueObject.add("merchant", merchant);
-        valueObject.add("customer", customer);
-        Tag cardType = terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME);
-        Tag transactionNumber = terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER);
-        valueObject.addProperty("cardType", new String(cardType.getData(), "Cp1250"));
-        valueObject.addProperty("transactionNumber", new String(transactionNumber.getData(), "Cp1250"));
-        valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-        valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("exchangeRate", terminalComm.readTransactionExchangeRate());
-        response.status = result.name();
-
-        response.value = valueObject;
-        return response;
+    EcrTransactionResult result = Metrics.timeStage("Reversal", "readTransactionResult", terminalComm::readTransactionResult);
+    return buildTransactionResponse(result);
+  }
+
+  private static Journal openJournal(String directory, TerminalConfig terminalConfig) {
+    try {
+      return new Journal(new File(directory), "terminal-" + terminalConfig.tid);
+    } catch (IOException | RuntimeException e) {
+      ErrorHandler.error(ErrorType.configError, e, "Failed to open the transaction journal for terminal " + terminalConfig.tid + ", running without it.");
+      return null;
+    }
+  }
+
+  // Journals requests that move money before they reach the terminal. Returns 0 for anything else.
+  public long journalStart(EPOSMessage msg) {
+    if (journal == null) return 0;
+    if (!Objects.equals(msg.type, "Sale") && !Objects.equals(msg.type, "Refund") && !Objects.equals(msg.type, "Reversal")) return 0;
+
+    JsonObject request = new JsonObject();
+    request.addProperty("type", msg.type);
+    request.addProperty("id", msg.id);
+    request.addProperty("saleId", msg.saleId);
+    request.addProperty("transId", msg.transId);
+    request.addProperty("value", msg.value);
+    request.addProperty("evoTransId", msg.evoTransId);
+    request.addProperty("time", System.currentTimeMillis());
+    Journal current = journal;
+    if (current == null) return 0;
+    try {
+      return current.start(request);
+    } catch (RuntimeException e) {
+      journalFailed(e);
+      return 0;
+    }
+  }
+
+  public void journalResult(long journalId, ResponseMessage response) {
+    if (journalId == 0) return;
+    JsonObject result = new JsonObject();
+    result.addProperty("type", response.type);
+    result.addProperty("status", response.status);
+    result.addProperty("prompt", response.prompt);
+    if (response.value instanceof TransactionSnapshot) {
+      TransactionSnapshot transaction = (TransactionSnapshot) response.value;
+      result.addProperty("transactionNumber", transaction.transactionNumber);
+      result.addProperty("amount", transaction.amount);
+      result.addProperty("pan", transaction.pan);
+    }
+    Journal current = journal;
+    if (current == null) return;
+    try {
+      current.result(journalId, result);
+    } catch (RuntimeException e) {
+      journalFailed(e);
+    }
+  }
+
+  public void journalDelivered(long journalId) {
+    Journal current = journal;
+    if (journalId == 0 || current == null) return;
+    try {
+      current.delivered(journalId);
+    } catch (RuntimeException e) {
+      journalFailed(e);
+    }
+  }
+
+  private void journalFailed(RuntimeException e) {
+    journal = null;
+    ErrorHandler.error(ErrorType.configError, e, "Transaction journal for terminal " + terminalConfig.tid + " failed, running without it.");
+  }
+
+  // Runs once the terminal is connected. Anything journaled but never answered when the service last stopped is
+  // looked up on the terminal and logged for staff, instead of being reconciled by hand from the EPOS side.
+  public void recoverJournal() {
+    Journal journal = this.journal;
+    if (journal == null) return;
+    try {
+      recoverJournal(journal);
+    } catch (RuntimeException e) {
+      journalFailed(e);
+    }
+  }
+
+  private void recoverJournal(Journal journal) {
+    for (Journal.Entry entry : new ArrayList<>(journal.unfinished())) {
+      if (entry.result != null) {
+        ErrorHandler.error(ErrorType.eposConnectionError, "Recovered " + entry.request + ": the terminal answered " + entry.result + " but the reply never reached EPOS.");
+        journal.recovered(entry.id, entry.result);
+        continue;
       }
-      catch (NullPointerException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when accessing tags.";
-        error.status = e.getMessage();
-        return error;
+
+      EcrStatus status = Metrics.timeStage("Recovery", "getLastTransactionData", terminalComm::getLastTransactionData);
+      JsonObject lastTransaction = null;
+      if (status == EcrStatus.ECR_OK) {
+        lastTransaction = Main.gson.toJsonTree(terminalComm.readLastTransaction()).getAsJsonObject();
       }
-      catch (UnsupportedEncodingException e) {
-        ResponseMessage error = new ResponseMessage("error");
-        error.prompt = "Unexpected error when decoding tags.";
-        error.status = e.getMessage();
-        return error;
+      else if (status != EcrStatus.ECR_NO_TERMINAL_DATA) {
+        ErrorHandler.error(ErrorType.deviceGenericError, status, "Could not look up the last transaction for interrupted " + entry.request + ", will retry on next start.");
+        continue;
       }
-      catch (Exception e) {
+      ErrorHandler.error(ErrorType.deviceGenericError, "Recovered interrupted " + entry.request + ". Last transaction on the terminal: " + (lastTransaction != null ? lastTransaction : "none"));
+      JsonObject result = new JsonObject();
+      result.addProperty("type", "recovered");
+      result.add("lastTransaction", lastTransaction);
+      journal.recovered(entry.id, result);
+    }
+  }
+
+  // Runs on the terminal worker after the reply has been sent, before the next request can replace the printout data.
+  public void renderDeferredReceipts() {
+    if (pendingReceiptHandle == null) return;
+    String handle = pendingReceiptHandle;
+    pendingReceiptHandle = null;
+    try {
+      List<EcrPrintoutLine> merchant = terminalComm.generateMerchantPrintout();
+      List<EcrPrintoutLine> customer = terminalComm.generateCustomerPrintout();
+      receiptStore.complete(handle, merchant, customer);
+    }
+    catch (Exception e) {
+      ErrorHandler.error(ErrorType.deviceGenericError, e, "Failed to render receipts for " + handle);
+      receiptStore.fail(handle, e);
+    }
+  }
+
+  public CompletableFuture<ResponseMessage> getReceipt(String handle, String copy) {
+    CompletableFuture<ReceiptStore.Receipts> receipts = receiptStore.get(handle);
+    if (receipts == null) {
+      ResponseMessage error = new ResponseMessage("error");
+      error.prompt = "Unknown or expired receipt handle.";
+      error.status = "TK_RECEIPT_NOT_FOUND";
+      return CompletableFuture.completedFuture(error);
+    }
+
+    return receipts.handle((rendered, e) -> {
+      if (e != null) {
         ResponseMessage error = new ResponseMessage("error");
         error.prompt = "Unexpected error when getting printout.";
         error.status = e.getMessage();
-
         return error;
       }
-    }
-    else {
+      ReceiptStore.Receipts value = new ReceiptStore.Receipts();
+      if (copy == null || Objects.equals(copy, "merchant")) value.merchant = rendered.merchant;
+      if (copy == null || Objects.equals(copy, "customer")) value.customer = rendered.customer;
+      ResponseMessage response = new ResponseMessage("success");
+      response.value = value;
+      return response;
+    });
+  }
+
+  // Builds the reply for a finished sale, refund, reversal or continue: both receipts plus the card details.
+  private ResponseMessage buildTransactionResponse(EcrTransactionResult result) {
+    if (result == null) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when reading transaction result.";
       return error;
     }
+
+    try {
+      ResponseMessage response = new ResponseMessage("success");
+      TransactionSnapshot valueObject;
+      if (deferReceipts) {
+        // Reply with the result now, the receipts are rendered once it has gone out.
+        valueObject = terminalComm.readTransaction();
+        valueObject.receiptHandle = receiptStore.reserve();
+        pendingReceiptHandle = valueObject.receiptHandle;
+      }
+      else {
+        List<EcrPrintoutLine> merchant = terminalComm.generateMerchantPrintout();
+        List<EcrPrintoutLine> customer = terminalComm.generateCustomerPrintout();
+        valueObject = terminalComm.readTransaction();
+        valueObject.merchant = merchant;
+        valueObject.customer = customer;
+      }
+      response.status = result.name();
+
+      response.value = valueObject;
+      return response;
+    }
+    catch (NullPointerException e) {
+      ResponseMessage error = new ResponseMessage("error");
+      error.prompt = "Unexpected error when accessing tags.";
+      error.status = e.getMessage();
+      return error;
+    }
+    catch (Exception e) {
+      ResponseMessage error = new ResponseMessage("error");
+      error.prompt = "Unexpected error when getting printout.";
+      error.status = e.getMessage();
+      return error;
+    }
   }
 
   public ResponseMessage forceReconciliation() {
-    EcrStatus status = terminalComm.setTransactionType(EcrTransactionType.TRANS_RECONCILE);
+    EcrStatus status = Metrics.timeStage("Reconcile", "setTransactionType", () -> terminalComm.setTransactionType(EcrTransactionType.TRANS_RECONCILE));
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage msg = new ResponseMessage("error");
       msg.prompt = "Reconciliation Transaction Error when starting.";
@@ -478,7 +566,7 @@ public class DeviceHandler {
       return msg;
     }
 
-    status = terminalComm.startTransaction();
+    status = Metrics.timeStage("Reconcile", "startTransaction", terminalComm::startTransaction);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when starting transaction.";
@@ -486,7 +574,7 @@ public class DeviceHandler {
       return error;
     }
 
-    EcrTransactionResult result = terminalComm.readTransactionResult();
+    EcrTransactionResult result = Metrics.timeStage("Reconcile", "readTransactionResult", terminalComm::readTransactionResult);
     if (result == null) {
       ResponseMessage msg = new ResponseMessage("error");
       msg.prompt = "Reconciliation null error.";
@@ -495,11 +583,12 @@ public class DeviceHandler {
     ResponseMessage msg;
     switch (result) {
       case RESULT_TRANS_ACCEPTED:
+        // A new batch has been closed, whatever was read of the last one is no use.
+        batchCache.reset();
         try {
           msg = new ResponseMessage("success");
-          Tag transactionNumber = terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER);
           JsonObject valueObject = new JsonObject();
-          valueObject.addProperty("transactionNumber", new String(transactionNumber.getData(), "Cp1250"));
+          valueObject.addProperty("transactionNumber", terminalComm.readTransactionNumber());
           msg.value = valueObject;
           return msg;
         }
@@ -509,12 +598,6 @@ public class DeviceHandler {
           error.status = e.getMessage();
           return error;
         }
-        catch (UnsupportedEncodingException e) {
-          ResponseMessage error = new ResponseMessage("error");
-          error.prompt = "Unexpected error when decoding tags.";
-          error.status = e.getMessage();
-          return error;
-        }
       case RESULT_NO_CONNECTION:
         msg = new ResponseMessage("error");
         msg.prompt = "Reconciliation failed - no connection.";
@@ -527,8 +610,14 @@ public class DeviceHandler {
         return msg;
     }
   }
-  public ResponseMessage handleBatch() {
-    if (terminalComm.readTerminalStatus() != EcrTerminalStatus.STATUS_BATCH_COMPLETED) {
+  // mode is null for every transaction in the reply, "stream" for a frame per transaction, "summary" for totals only
+  // and "summaryRows" for totals plus a compact row per transaction.
+  public ResponseMessage handleBatch(String mode) {
+    boolean stream = Objects.equals(mode, "stream");
+    boolean summary = Objects.equals(mode, "summary") || Objects.equals(mode, "summaryRows");
+    EcrTerminalStatus status = Metrics.timeStage("Batch", "readTerminalStatus", terminalComm::readTerminalStatus);
+    statusCache.update(status);
+    if (status != EcrTerminalStatus.STATUS_BATCH_COMPLETED) {
       ResponseMessage msg = new ResponseMessage("error");
       msg.prompt = "Unexpected invocation of handleBatch: Status is not STATUS_BATCH_COMPLETED";
       msg.status = "TK_UNEXPECTED_HANDLE_BATCH";
@@ -536,7 +625,60 @@ public class DeviceHandler {
     }
 
     try {
-      JsonObject batch = printoutHandler.getTransactionsFromBatch();
+      if (batchCache.size() > 0 && !batchCacheMatches()) {
+        // The batch was closed again without us, e.g. from the terminal's own menu.
+        Log.warn("The batch on terminal " + terminalConfig.tid + " doesn't match the cached one, reading all of it.");
+        batchCache.reset();
+      }
+      int known = batchCache.size();
+      BatchReport batch = new BatchReport();
+      BatchAggregator aggregator = summary ? new BatchAggregator() : null;
+      Consumer<TransactionSnapshot> sink;
+      if (summary) {
+        if (Objects.equals(mode, "summaryRows")) {
+          batch.columns = BatchReport.ROW_COLUMNS;
+          batch.rows = new ArrayList<>();
+        }
+        sink = transaction -> {
+          aggregator.add(transaction);
+          if (batch.rows != null) batch.rows.add(BatchReport.row(transaction));
+        };
+      }
+      else if (stream) {
+        // Each transaction goes out as its own frame, the final reply only carries the receipt.
+        sink = transaction -> {
+          ResponseMessage msg = new ResponseMessage("batchTransaction");
+          msg.value = transaction;
+          postToEPOS(msg, EPOSConnection.CALLBACK_TERMINATOR);
+        };
+      }
+      else {
+        batch.transactions = new ArrayList<>();
+        sink = batch.transactions::add;
+      }
+
+      batchCache.forEach(sink);
+      int[] read = {0};
+      List<EcrPrintoutLine> receipt = batchCache.receipt();
+      if (receipt == null) {
+        // Only the transactions not read before are decoded, the rest come from the cache.
+        receipt = terminalComm.streamTransactionsFromBatch(known, transaction -> {
+          batchCache.add(transaction);
+          sink.accept(transaction);
+          read[0]++;
+        });
+        batchCache.complete(receipt);
+      }
+      Log.info("Batch on terminal " + terminalConfig.tid + ": " + known + " transactions from the cache, " + read[0] + " read from the terminal.");
+      if (summary) {
+        // The back office only wants the figures, the receipt can still be had from a plain Batch request.
+        batch.totals = aggregator.totals();
+        batch.invalidAmounts = aggregator.invalidAmounts();
+      }
+      else {
+        batch.receipt = receipt;
+      }
+      if (stream || summary) batch.transactionCount = known + read[0];
       ResponseMessage msg = new ResponseMessage("success");
       msg.value = batch;
       return msg;
@@ -547,12 +689,6 @@ public class DeviceHandler {
       error.status = e.getMessage();
       return error;
     }
-    catch (UnsupportedEncodingException e) {
-      ResponseMessage error = new ResponseMessage("error");
-      error.prompt = "Unexpected error when decoding tags.";
-      error.status = e.getMessage();
-      return error;
-    }
     catch (Exception e) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when generating report from batch.";
@@ -561,8 +697,24 @@ public class DeviceHandler {
     }
   }
 
+  // Checks that the last cached transaction is still the same one on the terminal.
+  private boolean batchCacheMatches() throws Exception {
+    TransactionSnapshot onTerminal = terminalComm.readBatchTransaction(batchCache.size());
+    return onTerminal != null && Objects.equals(onTerminal.transactionNumber, batchCache.last().transactionNumber);
+  }
+
+  // Repeated Last requests are answered without the terminal for a short while. A transaction made on the terminal's own
+  // menu doesn't pass through the service, hence the age limit. While a request of ours is running the last transaction
+  // may be about to change, so Last waits for the terminal; a till checking on a timed-out sale must not get the one before.
+  public ResponseMessage getCachedLastTransaction() {
+    ResponseMessage cached = lastTransaction;
+    if (mutating || System.nanoTime() - lastTransactionAt > lastMaxAgeNanos) cached = null;
+    Metrics.increment("evo_last_cache_total", Metrics.labels("result", cached != null ? "hit" : "miss"));
+    return cached;
+  }
+
   public ResponseMessage getLastTransaction() {
-    EcrStatus status = terminalComm.getLastTransactionData();
+    EcrStatus status = Metrics.timeStage("Last", "getLastTransactionData", terminalComm::getLastTransactionData);
     if (status != EcrStatus.ECR_OK) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when getting last transaction.";
@@ -571,23 +723,12 @@ public class DeviceHandler {
     }
 
     try {
-      JsonObject valueObject = new JsonObject();
-      valueObject.addProperty("cardType", new String(terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME).getData(), "Cp1250"));
-      valueObject.addProperty("transactionNumber", new String(terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER).getData(), "Cp1250"));
-      valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-      valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-      valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-      valueObject.addProperty("date", terminalComm.readTransactionDate());
-      valueObject.addProperty("time", terminalComm.readTransactionTime());
-      String type = new String(terminalComm.readTag(TlvTag.TAG_TRANSACTION_TYPE).getData(), "Cp1250");
-      valueObject.addProperty("type", type);
-      if (type.equals("5")) {
-        valueObject.addProperty("originalType", new String(terminalComm.readTag(TlvTag.TAG_ORIGINAL_TRANSACTION_TYPE).getData(), "Cp1250"));
-      }
-      valueObject.addProperty("authorisationType", new String(terminalComm.readTag(TlvTag.TAG_AUTHORIZATION_TYPE).getData(), "Cp1250"));
+      TransactionSnapshot valueObject = terminalComm.readLastTransaction();
 
       ResponseMessage msg = new ResponseMessage("success");
       msg.value = valueObject;
+      lastTransactionAt = System.nanoTime();
+      lastTransaction = msg;
       return msg;
     }
     catch (NullPointerException e) {
@@ -596,12 +737,6 @@ public class DeviceHandler {
       error.status = e.getMessage();
       return error;
     }
-    catch (UnsupportedEncodingException e) {
-      ResponseMessage error = new ResponseMessage("error");
-      error.prompt = "Unexpected error when decoding tags.";
-      error.status = e.getMessage();
-      return error;
-    }
     catch (Exception e) {
       ResponseMessage error = new ResponseMessage("error");
       error.prompt = "Unexpected error when getting printout.";
@@ -610,26 +745,7 @@ public class DeviceHandler {
     }
   }
 
-  public EcrStatus initTerminalSettings(Config config) {
-    terminalComm.setProtocol(EcrCommProtocol.PROTOCOL_ESERVICE);
-
-    EcrStatus status = terminalComm.setCashRegisterId(config.tid.toString());
-    if (status != EcrStatus.ECR_OK) {
-      ErrorHandler.error(ErrorType.deviceGenericError, status,"Cash registration error.");
-      return status;
-    }
-
-    status = terminalComm.setHandleTerminalRequests(EcrHandlingTerminalRequestsMode.REQUESTS_HANDLE_CHOSEN_BY_TERMINAL);
-    if (status != EcrStatus.ECR_OK) {
-      ErrorHandler.error(ErrorType.deviceGenericError, status,"Requests mode initialization error.");
-      return status;
-    }
-
-    status = terminalComm.setTerminalIndex((byte)1);
-    if (status != EcrStatus.ECR_OK) {
-      ErrorHandler.error(ErrorType.deviceGenericError, status,"Failed to set terminal index.");
-      return status;
-    }
-    return status;
+  public EcrStatus initTerminalSettings() {
+    return terminalComm.initSettings(terminalConfig);
   }
-}
\ No newline at end of file
+}
@@ -1,16 +1,13 @@
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import ecrlib.api.EcrPaymentTerminal;
 import ecrlib.api.EcrPrintoutLine;
 import ecrlib.api.ExtendedPrintoutHandler;
+import ecrlib.api.PrintoutHandler;
 import ecrlib.api.SimplePrintoutHandler;
 import ecrlib.api.enums.*;
-import ecrlib.api.tlv.Tag;
 
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class DevicePrintoutHandler {
 
@@ -22,15 +19,21 @@ public class DevicePrintoutHandler {
       terminalComm = terminal;
   }
 
-  public JsonArray generateCustomerPrintout() throws Exception {
-    return generatePrintout(terminalComm.getTransactionCustomerPrintoutHandler());
+  public List<EcrPrintoutLine> generateCustomerPrintout() throws Exception {
+    long start = System.nanoTime();
+    List<EcrPrintoutLine> lines = generatePrintout(terminalComm.getTransactionCustomerPrintoutHandler());
+    Metrics.observe("evo_printout_seconds", Metrics.labels("printout", "customer"), start);
+    return lines;
   }
 
-  public JsonArray generateMerchantPrintout() throws Exception {
-    return generatePrintout(terminalComm.getTransactionMerchantPrintoutHandler());
+  public List<EcrPrintoutLine> generateMerchantPrintout() throws Exception {
+    long start = System.nanoTime();
+    List<EcrPrintoutLine> lines = generatePrintout(terminalComm.getTransactionMerchantPrintoutHandler());
+    Metrics.observe("evo_printout_seconds", Metrics.labels("printout", "merchant"), start);
+    return lines;
   }
 
-  public JsonArray generatePrintout(SimplePrintoutHandler printoutHandler) throws Exception {
+  public List<EcrPrintoutLine> generatePrintout(SimplePrintoutHandler printoutHandler) throws Exception {
     printoutHandler.setNormalLineLength(LINE_LENGTH);
     printoutHandler.setSmallLineLength(LINE_LENGTH);
     printoutHandler.setBigLineLength(LINE_LENGTH);
@@ -40,20 +43,37 @@ public class DevicePrintoutHandler {
       throw new Exception(result.name());
     }
 
-    JsonArray lineList = new JsonArray();
+    return readLines(printoutHandler);
+  }
 
+  // Lines are kept as they come from the terminal and written out by PrintoutLineAdapter when the reply is sent.
+  private List<EcrPrintoutLine> readLines(PrintoutHandler printoutHandler) {
     int lines = printoutHandler.getNumberOfLines();
+    List<EcrPrintoutLine> lineList = new ArrayList<>(lines);
     for (int i=0; i<lines; i++) {
-      EcrPrintoutLine line = printoutHandler.getNextLine();
-      lineList.add(Main.gson.toJsonTree(line));
+      lineList.add(printoutHandler.getNextLine());
     }
     return lineList;
   }
 
-  public JsonObject getTransactionsFromBatch() throws Exception {
-    JsonObject res = new JsonObject();
+  public TransactionSnapshot readBatchTransaction(int id) throws Exception {
+    EcrStatus status = terminalComm.setTransactionId(id);
+    if (status != EcrStatus.ECR_OK) {
+      throw new Exception(status.name() + " - setTransactionId");
+    }
+    status = terminalComm.getSingleTransactionFromBatch();
+    if (status == EcrStatus.ECR_NO_TERMINAL_DATA) return null;
+    if (status != EcrStatus.ECR_OK) {
+      throw new Exception(status.name() + " - getSingleTransactionFromBatch");
+    }
+    return TransactionSnapshot.readStored(terminalComm, true);
+  }
+
+  // Hands each batch transaction after the first known ones to the sink as soon as it is read, then returns the
+  // closing day receipt. The known ones still have to be loaded for the receipt, but their tags aren't read.
+  public List<EcrPrintoutLine> streamTransactionsFromBatch(int known, Consumer<TransactionSnapshot> sink) throws Exception {
+    long start = System.nanoTime();
     EcrStatus status;
-    JsonArray transList = new JsonArray();
     ExtendedPrintoutHandler printoutHandler = terminalComm.getClosingDayPrintoutHandler();
     printoutHandler.setNormalLineLength(LINE_LENGTH);
     printoutHandler.setSmallLineLength(LINE_LENGTH);
@@ -74,24 +94,12 @@ public class DevicePrintoutHandler {
 
       status = terminalComm.getSingleTransactionFromBatch();
       if (status == EcrStatus.ECR_OK) {
+        long entryStart = System.nanoTime();
         printoutHandler.addPrintoutEntry();
-        JsonObject valueObject = new JsonObject();
-        valueObject.addProperty("cardType", new String(terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME).getData(), "Cp1250"));
-        valueObject.addProperty("transactionNumber", new String(terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER).getData(), "Cp1250"));
-        valueObject.addProperty("pan", new String(terminalComm.readTag(TlvTag.TAG_MASKED_PAN).getData(), "Cp1250"));
-        valueObject.addProperty("currencyCode", terminalComm.readTransactionCurrencyLabel());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("exchangeRate", terminalComm.readTransactionExchangeRate());
-        valueObject.addProperty("amount", terminalComm.readTransactionAmount());
-        valueObject.addProperty("date", terminalComm.readTransactionDate());
-        valueObject.addProperty("time", terminalComm.readTransactionTime());
-        String type = new String(terminalComm.readTag(TlvTag.TAG_TRANSACTION_TYPE).getData(), "Cp1250");
-        valueObject.addProperty("type", type);
-        if (type.equals("5")) {
-          valueObject.addProperty("originalType", new String(terminalComm.readTag(TlvTag.TAG_ORIGINAL_TRANSACTION_TYPE).getData(), "Cp1250"));
-        }
-        valueObject.addProperty("authorisationType", new String(terminalComm.readTag(TlvTag.TAG_AUTHORIZATION_TYPE).getData(), "Cp1250"));
-        transList.add(valueObject);
+        if (iterator - 1 <= known) continue;
+        TransactionSnapshot transaction = TransactionSnapshot.readStored(terminalComm, true);
+        Metrics.observe("evo_batch_entry_seconds", "", entryStart);
+        sink.accept(transaction);
       } else if (status == EcrStatus.ECR_NO_TERMINAL_DATA) {
         break;
       } else {
@@ -108,17 +116,9 @@ public class DevicePrintoutHandler {
       throw new Exception(result.toString() + " - finishPrintout");
     }
 
-    JsonArray printoutLines = new JsonArray();
-
-    int lines = printoutHandler.getNumberOfLines();
-    for (int i=0; i<lines; i++) {
-      EcrPrintoutLine line = printoutHandler.getNextLine();
-      printoutLines.add(Main.gson.toJsonTree(line));
-    }
-
-    res.add("receipt", printoutLines);
-    res.add("transactions", transList);
-    return res;
+    List<EcrPrintoutLine> lines = readLines(printoutHandler);
+    Metrics.observe("evo_printout_seconds", Metrics.labels("printout", "batch"), start);
+    return lines;
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+import com.google.gson.stream.JsonWriter;
+import models.EPOSMessage;
+import models.ErrorType;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EPOSConnection {
+  private final EPOSServer server;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+
+  public static final byte[] RESPONSE_TERMINATOR = {4, 3};
+  public static final byte[] CALLBACK_TERMINATOR = {3};
+  // Error objects have only ever been terminated by EOT.
+  public static final byte[] ERROR_TERMINATOR = {4};
+
+  // A client that wants the binary protocol opens with these bytes followed by a version byte, and the service answers
+  // with the same five bytes. 0xEB can't start a JSON frame, so 4D clients are never mistaken for it.
+  static final byte[] BINARY_HELLO = {(byte) 0xEB, 'E', 'V', 'O'};
+  static final byte BINARY_VERSION = 1;
+  private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
+  // Pooled buffers a connection may have waiting for the socket before the sending thread has to wait for the till to
+  // read, and how long it waits before giving up on the connection.
+  private static final int MAX_PENDING_WRITES = 8;
+  private static final long WRITE_TIMEOUT_MILLIS = 30000;
+
+  private final FrameDecoder decoder = new FrameDecoder();
+  private BinaryFrameDecoder binaryDecoder;
+  private final byte[] hello = new byte[BINARY_HELLO.length + 1];
+  private int helloLength;
+  private boolean negotiated;
+  private volatile boolean binary;
+  private final ChannelFrameWriter frameWriter = new ChannelFrameWriter(this);
+  // Replies have always gone out in the platform charset (String.getBytes()), keep it that way for 4D.
+  private Writer textWriter = new OutputStreamWriter(frameWriter, Charset.defaultCharset());
+  private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+  private volatile boolean closed;
+
+  public EPOSConnection(EPOSServer server, SocketChannel channel, SelectionKey key) {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+  }
+
+  SelectionKey getKey() {
+    return key;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  // Called on the selector thread only. A null entry means the client has gone away.
+  List<EPOSMessage> read() throws IOException {
+    List<EPOSMessage> messages = new ArrayList<>();
+    ByteBuffer buffer = BufferPool.acquire();
+    try {
+      int bytesRead;
+      while ((bytesRead = channel.read(buffer)) > 0) {
+        buffer.flip();
+        if (!negotiated) negotiate(buffer, messages);
+        if (binary) binaryDecoder.decode(buffer, messages);
+        else decoder.decode(buffer, messages);
+        buffer.clear();
+      }
+      if (bytesRead < 0) messages.add(null);
+    } finally {
+      BufferPool.release(buffer);
+    }
+    return messages;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  // Looks for the binary hello at the start of the connection. Anything else means a JSON client.
+  private void negotiate(ByteBuffer buffer, List<EPOSMessage> messages) throws IOException {
+    while (buffer.hasRemaining()) {
+      byte b = buffer.get(buffer.position());
+      if (helloLength < BINARY_HELLO.length && b != BINARY_HELLO[helloLength]) {
+        negotiated = true;
+        // Hand over the bytes that looked like a hello, they belong to the first JSON frame.
+        decoder.decode(ByteBuffer.wrap(hello, 0, helloLength), messages);
+        return;
+      }
+      hello[helloLength++] = buffer.get();
+      if (helloLength == hello.length) {
+        negotiated = true;
+        binaryDecoder = new BinaryFrameDecoder();
+        binary = true;
+        Log.info("EPOS connection switched to the binary protocol, client version " + (hello[BINARY_HELLO.length] & 0xff) + ".");
+        byte[] answer = new byte[hello.length];
+        System.arraycopy(BINARY_HELLO, 0, answer, 0, BINARY_HELLO.length);
+        answer[BINARY_HELLO.length] = BINARY_VERSION;
+        write(answer);
+        return;
+      }
+    }
+  }
+
+  public void write(byte[] data) throws IOException {
+    synchronized (frameWriter) {
+      frameWriter.write(data);
+      frameWriter.finish();
+    }
+  }
+
+  // Streams the message as JSON straight into pooled socket buffers, followed by the terminator bytes. On a binary
+  // connection the terminator picks the frame kind instead.
+  public void send(Object message, byte[] terminator) throws IOException {
+    if (binary) {
+      sendBinary(message, terminator[0] == 4 ? BinaryFrameDecoder.FRAME_FINAL : BinaryFrameDecoder.FRAME_MESSAGE);
+      return;
+    }
+    synchronized (frameWriter) {
+      try {
+        JsonWriter jsonWriter = Main.gson.newJsonWriter(textWriter);
+        Main.gson.toJson(message, message.getClass(), jsonWriter);
+        jsonWriter.flush();
+        frameWriter.write(terminator);
+        frameWriter.finish();
+      } catch (IOException | RuntimeException e) {
+        // Drop anything left of the half written frame so it can't leak into the next one.
+        frameWriter.discard();
+        textWriter = new OutputStreamWriter(frameWriter, Charset.defaultCharset());
+        throw e;
+      }
+    }
+  }
+
+  // CBOR is written straight into the frame's pooled chunks. They are held until the payload is complete, so its
+  // length can be filled in ahead of it.
+  private void sendBinary(Object message, byte kind) throws IOException {
+    synchronized (frameWriter) {
+      try {
+        frameWriter.hold();
+        frameWriter.write(kind);
+        frameWriter.write(LENGTH_PLACEHOLDER);
+        Main.gson.toJson(message, message.getClass(), Cbor.newWriter(frameWriter));
+        frameWriter.putLength(1);
+        frameWriter.finish();
+      } catch (IOException | RuntimeException e) {
+        frameWriter.discard();
+        throw e;
+      }
+    }
+  }
+
+  void enqueue(ByteBuffer buffer) throws IOException {
+    if (closed) {
+      BufferPool.release(buffer);
+      throw new IOException("EPOS connection closed");
+    }
+    synchronized (pendingWrites) {
+      if (pendingWrites.isEmpty()) {
+        channel.write(buffer);
+        if (!buffer.hasRemaining()) {
+          BufferPool.release(buffer);
+          return;
+        }
+      }
+      // A till that reads slowly holds up the sender instead of the rest of a large reply piling up on the heap.
+      // Never on the selector thread, which is the one that drains the queue.
+      long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MILLIS;
+      while (pendingWrites.size() >= MAX_PENDING_WRITES && !closed && !server.isSelectorThread()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          BufferPool.release(buffer);
+          close();
+          throw new IOException("EPOS stopped reading for " + WRITE_TIMEOUT_MILLIS + " ms, closed the connection");
+        }
+        try {
+          pendingWrites.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          BufferPool.release(buffer);
+          throw new IOException("Interrupted while waiting for EPOS to read");
+        }
+      }
+      if (closed) {
+        BufferPool.release(buffer);
+        throw new IOException("EPOS connection closed");
+      }
+      pendingWrites.add(buffer);
+    }
+    // Socket buffer is full, let the selector thread finish the write when the channel drains.
+    server.requestWrite(this);
+  }
+
+  // Called on the selector thread only. Returns true when all queued data has been written.
+  boolean flush() throws IOException {
+    synchronized (pendingWrites) {
+      while (!pendingWrites.isEmpty()) {
+        ByteBuffer buffer = pendingWrites.peek();
+        channel.write(buffer);
+        if (buffer.hasRemaining()) return false;
+        BufferPool.release(pendingWrites.poll());
+        pendingWrites.notifyAll();
+      }
+      return true;
+    }
+  }
+
+  public void close() {
+    if (closed) return;
+    closed = true;
+    key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Failed to close EPOS connection");
+    }
+    synchronized (pendingWrites) {
+      pendingWrites.clear();
+      pendingWrites.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+import models.EPOSMessage;
+import models.ErrorType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+public class EPOSServer {
+  private final int port;
+  private final BiConsumer<EPOSConnection, EPOSMessage> dispatcher;
+  private final ConcurrentLinkedQueue<EPOSConnection> writeRequests = new ConcurrentLinkedQueue<>();
+
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private volatile Thread selectorThread;
+
+  public EPOSServer(int port, BiConsumer<EPOSConnection, EPOSMessage> dispatcher) {
+    this.port = port;
+    this.dispatcher = dispatcher;
+  }
+
+  public void bind() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.configureBlocking(false);
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  // Multiplexes every EPOS connection on the calling thread; decoded messages go to the dispatcher.
+  public void run() {
+    selectorThread = Thread.currentThread();
+    while (true) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        ErrorHandler.error(ErrorType.eposConnectionError, e, "EPOS selector failed");
+        return;
+      }
+
+      EPOSConnection pending;
+      while ((pending = writeRequests.poll()) != null) {
+        try {
+          if (!pending.isClosed()) {
+            pending.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        } catch (RuntimeException e) {
+          // E.g. CancelledKeyException when another thread closed the connection after the isClosed check.
+          ErrorHandler.error(ErrorType.eposConnectionError, e, "Failed to queue a write to EPOS, closing the connection");
+          pending.close();
+        }
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) continue;
+
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+
+        EPOSConnection connection = (EPOSConnection) key.attachment();
+        try {
+          if (key.isWritable() && connection.flush()) {
+            key.interestOps(SelectionKey.OP_READ);
+          }
+          if (key.isValid() && key.isReadable()) {
+            read(connection);
+          }
+        } catch (IOException e) {
+          // Logs error locally if the socket dies.
+          ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while receiving message from EPOS");
+          connection.close();
+        } catch (RuntimeException e) {
+          // This is the only EPOS I/O thread, one bad connection or request mustn't stop it serving every till.
+          ErrorHandler.error(ErrorType.eposConnectionError, e, "Failed to handle EPOS connection, closing it");
+          connection.close();
+        }
+      }
+    }
+  }
+
+  boolean isSelectorThread() {
+    return Thread.currentThread() == selectorThread;
+  }
+
+  void requestWrite(EPOSConnection connection) {
+    writeRequests.add(connection);
+    selector.wakeup();
+  }
+
+  private void accept() {
+    try {
+      SocketChannel channel = serverChannel.accept();
+      if (channel == null) return;
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      key.attach(new EPOSConnection(this, channel, key));
+    } catch (IOException e) {
+      // Logs error locally if the socket dies.
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while connecting to EPOS");
+    }
+  }
+
+  private void read(EPOSConnection connection) throws IOException {
+    List<EPOSMessage> messages = connection.read();
+    for (EPOSMessage msg : messages) {
+      if (msg == null || Objects.equals(msg.type, "closeConnection")) { //When we receive this message from 4D, close this connection.
+        connection.close();
+        return;
+      }
+      dispatcher.accept(connection, msg);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+import ecrlib.api.EcrCallbacks;
+import ecrlib.api.EcrCallbacksManager;
+import ecrlib.api.EcrPaymentTerminal;
+import ecrlib.api.EcrPrintoutLine;
+import ecrlib.api.PrintoutHandler;
+import ecrlib.api.enums.EcrCommProtocol;
+import ecrlib.api.enums.EcrHandlingTerminalRequestsMode;
+import ecrlib.api.enums.EcrStatus;
+import ecrlib.api.enums.EcrTerminalStatus;
+import ecrlib.api.enums.EcrTransactionResult;
+import ecrlib.api.enums.EcrTransactionType;
+import ecrlib.api.enums.TlvTag;
+import models.ErrorType;
+import models.TerminalConfig;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// A Lane/3000 driven through ecrlib. Needs the native library, so Windows only.
+public class EcrTerminalBackend implements TerminalBackend {
+  private final EcrPaymentTerminal terminalComm;
+  private final DevicePrintoutHandler printoutHandler;
+  private EcrCallbacksManager callbacksManager;
+
+  // Printouts are the only thing that needs the dictionary, so it loads while the terminal connects.
+  private static final CompletableFuture<Void> dictionary = new CompletableFuture<>();
+
+  static {
+    long start = System.nanoTime();
+    try {
+      System.loadLibrary("libecrjava");
+    }
+    catch (UnsatisfiedLinkError linkError) {
+      System.loadLibrary("ecrjava");
+    }
+    Log.info("Terminal library loaded in " + (System.nanoTime() - start) / 1000000 + " ms.");
+
+    Thread loader = new Thread(EcrTerminalBackend::loadDictionary, "dictionary-loader");
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  private static void loadDictionary() {
+    long start = System.nanoTime();
+    try {
+      PrintoutHandler.setupDictionaryFromFile("EN.LNG");
+      PrintoutHandler.setUsingSignatureVerifiedLine(true);
+      Log.info("Printout dictionary loaded in " + (System.nanoTime() - start) / 1000000 + " ms.");
+      dictionary.complete(null);
+    } catch (RuntimeException | Error e) {
+      ErrorHandler.error(ErrorType.configError, "Failed to load the printout dictionary EN.LNG: " + e);
+      dictionary.completeExceptionally(e);
+    }
+  }
+
+  public EcrTerminalBackend() {
+    terminalComm = new EcrPaymentTerminal();
+    printoutHandler = new DevicePrintoutHandler(terminalComm);
+  }
+
+  @Override
+  public void registerCallbacks(EcrCallbacks callbacks) {
+    callbacksManager = new EcrCallbacksManager(callbacks);
+    callbacksManager.register();
+  }
+
+  @Override
+  public EcrStatus connect(TerminalConfig terminalConfig) {
+    return terminalComm.setTcpIpLink(terminalConfig.terminalIp, terminalConfig.terminalPort, terminalConfig.terminalTimeout);
+  }
+
+  @Override
+  public EcrStatus initSettings(TerminalConfig terminalConfig) {
+    terminalComm.setProtocol(EcrCommProtocol.PROTOCOL_ESERVICE);
+
+    EcrStatus status = terminalComm.setCashRegisterId(terminalConfig.tid.toString());
+    if (status != EcrStatus.ECR_OK) {
+      ErrorHandler.error(ErrorType.deviceGenericError, status,"Cash registration error.");
+      return status;
+    }
+
+    status = terminalComm.setHandleTerminalRequests(EcrHandlingTerminalRequestsMode.REQUESTS_HANDLE_CHOSEN_BY_TERMINAL);
+    if (status != EcrStatus.ECR_OK) {
+      ErrorHandler.error(ErrorType.deviceGenericError, status,"Requests mode initialization error.");
+      return status;
+    }
+
+    status = terminalComm.setTerminalIndex((byte)1);
+    if (status != EcrStatus.ECR_OK) {
+      ErrorHandler.error(ErrorType.deviceGenericError, status,"Failed to set terminal index.");
+      return status;
+    }
+    return status;
+  }
+
+  @Override
+  public EcrStatus getTerminalStatus() {
+    return terminalComm.getTerminalStatus();
+  }
+
+  @Override
+  public EcrTerminalStatus readTerminalStatus() {
+    return terminalComm.readTerminalStatus();
+  }
+
+  @Override
+  public EcrStatus setTransactionType(EcrTransactionType type) {
+    return terminalComm.setTransactionType(type);
+  }
+
+  @Override
+  public EcrStatus setTransactionAmount(String amount) {
+    return terminalComm.setTransactionAmount(amount);
+  }
+
+  @Override
+  public EcrStatus setNumberOfTransactionToReverse(String transactionId) {
+    return terminalComm.setNumberOfTransactionToReverse(transactionId);
+  }
+
+  @Override
+  public EcrStatus startTransaction() {
+    return terminalComm.startTransaction();
+  }
+
+  @Override
+  public EcrStatus continueTransaction() {
+    return terminalComm.continueTransaction();
+  }
+
+  @Override
+  public EcrTransactionResult readTransactionResult() {
+    return terminalComm.readTransactionResult();
+  }
+
+  @Override
+  public EcrStatus getLastTransactionData() {
+    return terminalComm.getLastTransactionData();
+  }
+
+  @Override
+  public TransactionSnapshot readTransaction() {
+    return TransactionSnapshot.readResult(terminalComm);
+  }
+
+  @Override
+  public TransactionSnapshot readLastTransaction() {
+    return TransactionSnapshot.readStored(terminalComm, false);
+  }
+
+  @Override
+  public String readTransactionNumber() {
+    return TransactionSnapshot.decode(terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER));
+  }
+
+  @Override
+  public List<EcrPrintoutLine> generateMerchantPrintout() throws Exception {
+    dictionary.join();
+    return printoutHandler.generateMerchantPrintout();
+  }
+
+  @Override
+  public List<EcrPrintoutLine> generateCustomerPrintout() throws Exception {
+    dictionary.join();
+    return printoutHandler.generateCustomerPrintout();
+  }
+
+  @Override
+  public TransactionSnapshot readBatchTransaction(int id) throws Exception {
+    return printoutHandler.readBatchTransaction(id);
+  }
+
+  @Override
+  public List<EcrPrintoutLine> streamTransactionsFromBatch(int known, Consumer<TransactionSnapshot> sink) throws Exception {
+    dictionary.join();
+    return printoutHandler.streamTransactionsFromBatch(known, sink);
+  }
+}
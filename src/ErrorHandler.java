@@ -1,48 +1,33 @@
+import com.google.gson.JsonObject;
 import ecrlib.api.enums.EcrStatus;
 import models.ErrorType;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 public class ErrorHandler {
   static void error(ErrorType type, Exception e, String message) {
-    logTimestamp();
-    System.err.println("An error has occurred: " + type.name());
-    System.err.println(message);
-    e.printStackTrace();
+    Log.error("An error has occurred: " + type.name() + "\n" + message, e);
   }
 
   static void error(ErrorType type, Exception e) {
-    logTimestamp();
-    System.err.println("An error has occurred: " + type.name());
-    e.printStackTrace();
+    Log.error("An error has occurred: " + type.name(), e);
   }
 
   static void error(ErrorType type, String message) {
-    logTimestamp();
-    System.err.println("An error has occurred: " + type.name());
-    System.err.println(message);
+    Log.error("An error has occurred: " + type.name() + "\n" + message, null);
   }
 
   static void error(ErrorType type, EcrStatus status, String message) {
-    logTimestamp();
-    System.err.println("An error has occurred: " + type.name());
-    System.err.println(status.name());
-    System.err.println(message);
-  }
-
-  static void logTimestamp() {
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    String formattedDate = sdf.format(new Date());
-    System.err.println(formattedDate);
+    Log.error("An error has occurred: " + type.name() + "\n" + status.name() + "\n" + message, null);
   }
 
-  static byte[] buildErrorObject(ErrorType type) {
+  static JsonObject buildErrorObject(ErrorType type) {
     return buildErrorObject(type, "");
   }
 
-  static byte[] buildErrorObject(ErrorType type, String message) {
-    return ("{\"err\": \"" + type.name() + "\""+ (!message.isEmpty() ? ", \"message\": \"" + message + "\"" : "")+ "}"
-            + (char) 4).getBytes();
+  // Sent with EPOSConnection.ERROR_TERMINATOR.
+  static JsonObject buildErrorObject(ErrorType type, String message) {
+    JsonObject error = new JsonObject();
+    error.addProperty("err", type.name());
+    if (!message.isEmpty()) error.addProperty("message", message);
+    return error;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+import models.ResponseMessage;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Merges the informational events a terminal pushes to EPOS. The first event after a quiet spell goes out at once;
+// after that, within each window only the latest event of each kind is sent. A burst of status changes during a
+// card read then costs the till one redraw instead of several.
+// Prompts waiting for an answer and errors are never merged or held back. Anything still pending is sent before them,
+// so EPOS gets events in order.
+public class EventCoalescer {
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "event-coalescer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final long windowNanos;
+  private final Consumer<ResponseMessage> sink;
+  private final Object lock = new Object();
+  // Latest event of each kind not sent yet, and the last one that was.
+  private final Map<String, ResponseMessage> pending = new LinkedHashMap<>();
+  private final Map<String, ResponseMessage> delivered = new HashMap<>();
+  private long windowEnd = System.nanoTime();
+  private boolean flushScheduled;
+
+  public EventCoalescer(long windowMillis, Consumer<ResponseMessage> sink) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.sink = sink;
+  }
+
+  public void publish(ResponseMessage msg) {
+    String kind = kindOf(msg);
+    synchronized (lock) {
+      if (kind == null) {
+        flushPending();
+        deliver(msg);
+        return;
+      }
+
+      ResponseMessage last = pending.containsKey(kind) ? pending.get(kind) : delivered.get(kind);
+      if (same(last, msg)) return;
+
+      long now = System.nanoTime();
+      if (pending.isEmpty() && now - windowEnd >= 0) {
+        delivered.put(kind, msg);
+        deliver(msg);
+        windowEnd = now + windowNanos;
+        return;
+      }
+
+      // Moved to the back, so pending events go out in the order of their latest update.
+      if (pending.remove(kind) != null) {
+        Metrics.increment("evo_epos_events_total", Metrics.labels("result", "merged"));
+      }
+      pending.put(kind, msg);
+      if (!flushScheduled) {
+        flushScheduled = true;
+        timer.schedule(this::flush, Math.max(0, windowEnd - now), TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  // Sends whatever is pending now, e.g. before the final reply so no event arrives after it.
+  public void flush() {
+    synchronized (lock) {
+      flushScheduled = false;
+      if (flushPending()) {
+        windowEnd = System.nanoTime() + windowNanos;
+      }
+    }
+  }
+
+  // A new EPOS connection hasn't seen anything yet, so the next event of each kind goes out even if it repeats.
+  public void forget() {
+    synchronized (lock) {
+      delivered.clear();
+    }
+  }
+
+  // Called with lock held. Returns true if anything was sent.
+  private boolean flushPending() {
+    boolean sent = false;
+    for (Map.Entry<String, ResponseMessage> entry : pending.entrySet()) {
+      // Skipped if a later event put EPOS back in the state it last saw.
+      if (same(delivered.get(entry.getKey()), entry.getValue())) continue;
+      delivered.put(entry.getKey(), entry.getValue());
+      deliver(entry.getValue());
+      sent = true;
+    }
+    pending.clear();
+    return sent;
+  }
+
+  private void deliver(ResponseMessage msg) {
+    Metrics.increment("evo_epos_events_total", Metrics.labels("result", "sent"));
+    sink.accept(msg);
+  }
+
+  // Status changes replace each other, as do the screens that only tell the cashier what the terminal is doing.
+  private static String kindOf(ResponseMessage msg) {
+    if (msg.callbackId != null) return null;
+    switch (msg.type) {
+      case "handleStatusChange":
+        return "status";
+      case "showPromptScreen":
+      case "waitForCard":
+      case "waitForPin":
+      case "waitForCardRemoval":
+        return "screen";
+      default:
+        return null;
+    }
+  }
+
+  private static boolean same(ResponseMessage a, ResponseMessage b) {
+    return a != null && Objects.equals(a.type, b.type) && Objects.equals(a.prompt, b.prompt);
+  }
+}
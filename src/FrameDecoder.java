@@ -0,0 +1,67 @@
+import com.google.gson.JsonParseException;
+import models.EPOSMessage;
+import models.ErrorType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Splits the EPOS byte stream into ETX (or NUL) terminated JSON frames. One instance per connection.
+public class FrameDecoder {
+  private static final int MAX_FRAME_LENGTH = 1 << 20;
+
+  private final Utf8SliceReader reader = new Utf8SliceReader();
+  private byte[] partial = new byte[1024];
+  private int partialLength;
+  private boolean discarding;
+
+  // Decodes every complete frame in the buffer. A null entry means EPOS sent an empty frame to end the session.
+  public void decode(ByteBuffer buffer, List<EPOSMessage> out) {
+    byte[] data = buffer.array();
+    int start = buffer.arrayOffset() + buffer.position();
+    int end = buffer.arrayOffset() + buffer.limit();
+
+    int frameStart = start;
+    for (int i = start; i < end; i++) {
+      byte b = data[i];
+      if (b != 3 && b != 0) continue;
+
+      if (partialLength == 0) {
+        // Whole frame is in this read, parse it in place.
+        emit(data, frameStart, i - frameStart, out);
+      } else {
+        append(data, frameStart, i - frameStart);
+        emit(partial, 0, partialLength, out);
+        partialLength = 0;
+      }
+      discarding = false;
+      frameStart = i + 1;
+    }
+    append(data, frameStart, end - frameStart);
+    buffer.position(buffer.limit());
+  }
+
+  private void append(byte[] data, int offset, int length) {
+    if (length == 0 || discarding) return;
+    if (partialLength + length > MAX_FRAME_LENGTH) {
+      ErrorHandler.error(ErrorType.eposConnectionError, "Frame from EPOS exceeded " + MAX_FRAME_LENGTH + " bytes, discarding it.");
+      partialLength = 0;
+      discarding = true;
+      return;
+    }
+    if (partialLength + length > partial.length) {
+      partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+    }
+    System.arraycopy(data, offset, partial, partialLength, length);
+    partialLength += length;
+  }
+
+  private void emit(byte[] data, int offset, int length, List<EPOSMessage> out) {
+    if (discarding) return;
+    try {
+      out.add(Main.gson.fromJson(reader.reset(data, offset, length), EPOSMessage.class));
+    } catch (JsonParseException e) {
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Invalid message received from EPOS");
+    }
+  }
+}
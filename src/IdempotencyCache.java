@@ -0,0 +1,101 @@
+import models.EPOSMessage;
+import models.ResponseMessage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+// Remembers the outcome of Sale, Refund and Reversal requests by their saleId and transId, so a request that 4D resends
+// after a timeout is answered from the first attempt instead of starting a second card transaction. The amount and
+// currency are kept with it: a request that reuses the ids for a different payment is turned away, not answered with
+// the first one's approval.
+public class IdempotencyCache {
+  private static final int MAX_ENTRIES = 256;
+
+  private final long ttlMillis;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  private static class Entry {
+    final String payload;
+    final CompletableFuture<ResponseMessage> response = new CompletableFuture<>();
+    long expiresAt = Long.MAX_VALUE;
+
+    Entry(String payload) {
+      this.payload = payload;
+    }
+  }
+
+  public IdempotencyCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  // Returns null for requests that are safe to repeat or don't carry both a saleId and a transId to recognise them by.
+  public static String keyOf(EPOSMessage msg) {
+    if (!Objects.equals(msg.type, "Sale") && !Objects.equals(msg.type, "Refund") && !Objects.equals(msg.type, "Reversal")) return null;
+    if (msg.saleId == null || msg.transId == null) return null;
+    return msg.type + "/" + msg.saleId + "/" + msg.transId;
+  }
+
+  // What a resend has to repeat exactly to be answered from the first attempt.
+  public static String payloadOf(EPOSMessage msg) {
+    return msg.value + "/" + msg.currency + "/" + msg.evoTransId;
+  }
+
+  // Registers a new request and returns null, or returns the response of the earlier request with the same key.
+  // The returned future is still pending while the earlier request is running. A request whose payload differs from
+  // the earlier one gets an error instead.
+  public synchronized CompletableFuture<ResponseMessage> claim(String key, String payload) {
+    evict();
+    Entry existing = entries.get(key);
+    if (existing == null) {
+      entries.put(key, new Entry(payload));
+      return null;
+    }
+    if (!existing.payload.equals(payload)) {
+      Log.warn("Request " + key + " reuses the ids of an earlier request with a different amount or currency, refusing it.");
+      ResponseMessage mismatch = new ResponseMessage("error");
+      mismatch.prompt = "This saleId and transId were already used for a different payment.";
+      mismatch.status = "TK_DUPLICATE_MISMATCH";
+      return CompletableFuture.completedFuture(mismatch);
+    }
+    return existing.response;
+  }
+
+  // Success replies (including declined cards) are kept until they expire. Error replies are handed to any
+  // duplicates already waiting and then dropped, so a later retry runs again.
+  public synchronized void complete(String key, ResponseMessage response) {
+    if (key == null) return;
+    Entry entry = entries.get(key);
+    if (entry == null) return;
+    if (Objects.equals(response.type, "success")) {
+      entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+    }
+    else {
+      entries.remove(key);
+    }
+    entry.response.complete(response);
+  }
+
+  // Forgets a request that never produced a ResponseMessage (it was rejected or failed). Does nothing once it has one.
+  public synchronized void abandon(String key) {
+    if (key == null) return;
+    Entry entry = entries.get(key);
+    if (entry == null || entry.response.isDone()) return;
+    entries.remove(key);
+    entry.response.completeExceptionally(new IllegalStateException("Original request did not complete."));
+  }
+
+  private void evict() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      // In-flight requests are never evicted, or their retries would start a second transaction.
+      if (entry.expiresAt <= now || (entries.size() > MAX_ENTRIES && entry.response.isDone())) {
+        it.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,322 @@
+import com.google.gson.JsonObject;
+import models.ErrorType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead journal of the money moving requests on one terminal, kept in a memory-mapped file.
+// Each request gets a START record before it reaches the terminal, a RESULT record once the terminal answers and a
+// DELIVERED record once the reply is handed to EPOS. Anything started but not delivered when the process died is
+// found again on the next startup.
+//
+// Record layout: int payload length, byte kind, long entry id, payload (UTF-8 JSON), int CRC32 of kind, id and payload.
+// A zero length or a bad CRC marks the end of the journal, which also cuts off a record torn by a crash.
+public class Journal {
+  private static final int FILE_SIZE = 1 << 20;
+  private static final int HEADER = 4 + 1 + 8;
+  private static final int TRAILER = 4;
+  // How long start() waits for its record to reach the disk before giving up on the journal.
+  private static final long FORCE_TIMEOUT_MILLIS = 10000;
+
+  static final byte START = 1;
+  static final byte RESULT = 2;
+  static final byte DELIVERED = 3;
+  // Closes an entry that was recovered at startup, so it isn't recovered again.
+  static final byte RECOVERED = 4;
+
+  public static class Entry {
+    public final long id;
+    public final JsonObject request;
+    public JsonObject result;
+
+    Entry(long id, JsonObject request) {
+      this.id = id;
+      this.request = request;
+    }
+  }
+
+  private final File directory;
+  private final String name;
+  private final Object lock = new Object();
+  private final Map<Long, Entry> open = new LinkedHashMap<>();
+  private final List<Entry> unfinished = new ArrayList<>();
+
+  private MappedByteBuffer buffer;
+  private int generation;
+  private long nextId = 1;
+  // Bytes appended so far and bytes known to be on disk, across generations.
+  private long appended;
+  private volatile long forced;
+  private boolean flushRequested;
+  // Set once a write to the disk has failed. Every later call throws, so the caller can stop using the journal.
+  private volatile boolean failed;
+
+  public Journal(File directory, String name) throws IOException {
+    this.directory = directory;
+    this.name = name;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create journal directory " + directory);
+    }
+    replay();
+    unfinished.addAll(open.values());
+
+    Thread flusher = new Thread(this::flushLoop, "journal-" + name);
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  // Requests that were started but never delivered when the service last stopped.
+  public List<Entry> unfinished() {
+    return unfinished;
+  }
+
+  // Records a request before it is sent to the terminal and waits until the record is on disk. Throws
+  // IllegalStateException if the journal can't be written or the record doesn't reach the disk in time.
+  public long start(JsonObject request) {
+    long id;
+    long end;
+    synchronized (lock) {
+      id = nextId++;
+      end = append(START, id, request);
+      // Only now, so a rotation triggered by this append doesn't copy the entry and then get it written again.
+      open.put(id, new Entry(id, request));
+    }
+    awaitForced(end);
+    return id;
+  }
+
+  // The terminal's answer. Written without waiting, the next forced write or group commit takes it to disk.
+  public void result(long id, JsonObject result) {
+    synchronized (lock) {
+      append(RESULT, id, result);
+      Entry entry = open.get(id);
+      if (entry != null) entry.result = result;
+    }
+  }
+
+  public void delivered(long id) {
+    synchronized (lock) {
+      open.remove(id);
+      append(DELIVERED, id, null);
+    }
+  }
+
+  public void recovered(long id, JsonObject result) {
+    synchronized (lock) {
+      open.remove(id);
+      unfinished.removeIf(entry -> entry.id == id);
+      append(RECOVERED, id, result);
+    }
+  }
+
+  // Called with lock held. Returns the journal position just after the record.
+  private long append(byte kind, long id, JsonObject payload) {
+    if (failed) throw new IllegalStateException("Journal " + name + " has failed");
+    byte[] data = payload != null ? Main.gson.toJson(payload).getBytes(StandardCharsets.UTF_8) : new byte[0];
+    int size = HEADER + data.length + TRAILER;
+    if (buffer == null || buffer.remaining() < size + 4) {
+      rotate(size);
+    }
+
+    int position = buffer.position();
+    // Write the body first and the length last, so a crash mid-record never leaves a length pointing at garbage.
+    buffer.position(position + 4);
+    buffer.put(kind);
+    buffer.putLong(id);
+    buffer.put(data);
+    buffer.putInt(checksum(kind, id, data));
+    buffer.putInt(position, data.length + 1);
+    appended += size;
+    requestFlush();
+    return appended;
+  }
+
+  private void requestFlush() {
+    flushRequested = true;
+    lock.notifyAll();
+  }
+
+  private void awaitForced(long position) {
+    long deadline = System.currentTimeMillis() + FORCE_TIMEOUT_MILLIS;
+    synchronized (lock) {
+      while (forced < position) {
+        if (failed) throw new IllegalStateException("Journal " + name + " has failed");
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          failed = true;
+          throw new IllegalStateException("Journal " + name + " didn't reach the disk within " + FORCE_TIMEOUT_MILLIS + " ms");
+        }
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  // Group commit: every record appended while a force was running goes to disk with the next one.
+  private void flushLoop() {
+    while (true) {
+      MappedByteBuffer target;
+      long position;
+      synchronized (lock) {
+        while (!flushRequested) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        flushRequested = false;
+        target = buffer;
+        position = appended;
+      }
+
+      try {
+        target.force();
+      } catch (RuntimeException e) {
+        ErrorHandler.error(ErrorType.configError, e, "Failed to write journal " + name + " to disk.");
+        synchronized (lock) {
+          // Releases anything waiting in awaitForced, which then gives up on the journal.
+          failed = true;
+          lock.notifyAll();
+        }
+        return;
+      }
+
+      synchronized (lock) {
+        forced = Math.max(forced, position);
+        lock.notifyAll();
+      }
+    }
+  }
+
+  // Starts a new journal file holding only the entries that are still open, and removes the older files once it is on
+  // disk. An old file that is still mapped stays until it is collected (Windows won't delete a mapped file), so it is
+  // removed on the next startup instead; replay reads every generation left behind, oldest first.
+  private void rotate(int needed) {
+    if (buffer != null) buffer.force();
+    generation++;
+    int size = Math.max(FILE_SIZE, needed * 2 + open.size() * 4096);
+    try (RandomAccessFile file = new RandomAccessFile(fileFor(generation), "rw")) {
+      file.setLength(size);
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      failed = true;
+      throw new IllegalStateException("Cannot create journal file " + fileFor(generation), e);
+    }
+
+    for (Entry entry : open.values()) {
+      append(START, entry.id, entry.request);
+      if (entry.result != null) append(RESULT, entry.id, entry.result);
+    }
+    buffer.force();
+    for (File file : journalFiles()) {
+      if (generationOf(file) < generation && !file.delete()) file.deleteOnExit();
+    }
+  }
+
+  // Replays every generation in order. A rotation that crashed before the copied entries reached disk leaves a newer
+  // file that is empty or torn, so the older ones are only deleted once the open entries are in a new generation.
+  private void replay() throws IOException {
+    File[] files = journalFiles();
+    if (files.length == 0) return;
+    Arrays.sort(files, Comparator.comparingInt(this::generationOf));
+    for (File file : files) {
+      generation = Math.max(generation, generationOf(file));
+      replay(file);
+    }
+
+    synchronized (lock) {
+      rotate(0);
+      forced = appended;
+    }
+  }
+
+  private void replay(File journal) throws IOException {
+    ByteBuffer records;
+    try (RandomAccessFile file = new RandomAccessFile(journal, "r")) {
+      records = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    }
+
+    while (records.remaining() >= HEADER + TRAILER) {
+      int position = records.position();
+      int length = records.getInt(position) - 1;
+      if (length < 0) break;
+      if (position + HEADER + length + TRAILER > records.limit() || !readRecord(records, position, length)) {
+        ErrorHandler.error(ErrorType.configError, "Journal " + journal.getName() + " has a damaged record at " + position + ", ignoring the rest of it.");
+        break;
+      }
+    }
+  }
+
+  private boolean readRecord(ByteBuffer records, int position, int length) {
+    records.position(position + 4);
+    byte kind = records.get();
+    long id = records.getLong();
+    byte[] data = new byte[length];
+    records.get(data);
+    if (records.getInt() != checksum(kind, id, data)) return false;
+
+    JsonObject payload = length > 0 ? Main.gson.fromJson(new String(data, StandardCharsets.UTF_8), JsonObject.class) : null;
+    apply(kind, id, payload);
+    nextId = Math.max(nextId, id + 1);
+    return true;
+  }
+
+  private static int checksum(byte kind, long id, byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(kind);
+    for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (id >>> shift));
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  private void apply(byte kind, long id, JsonObject payload) {
+    switch (kind) {
+      case START:
+        open.put(id, new Entry(id, payload));
+        break;
+      case RESULT:
+        Entry entry = open.get(id);
+        if (entry != null) entry.result = payload;
+        break;
+      case DELIVERED:
+      case RECOVERED:
+        open.remove(id);
+        break;
+    }
+  }
+
+  private File[] journalFiles() {
+    File[] files = directory.listFiles((dir, file) -> file.startsWith(name + "-") && file.endsWith(".wal") && generationOf(new File(dir, file)) >= 0);
+    return files != null ? files : new File[0];
+  }
+
+  private File fileFor(int fileGeneration) {
+    return new File(directory, name + "-" + fileGeneration + ".wal");
+  }
+
+  private int generationOf(File file) {
+    String fileName = file.getName();
+    try {
+      return Integer.parseInt(fileName.substring(name.length() + 1, fileName.length() - 4));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
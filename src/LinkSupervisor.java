@@ -0,0 +1,142 @@
+import ecrlib.api.enums.EcrStatus;
+import models.ErrorType;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+// Keeps the link to one terminal up. While the terminal is idle the link is probed so a drop is noticed before the
+// next sale, a dropped link is re-established with backoff, and while it is down requests fail fast instead of
+// each one timing out against the terminal.
+public class LinkSupervisor {
+  private static final long MIN_BACKOFF_MILLIS = 1000;
+
+  private final DeviceHandler deviceHandler;
+  private final long probeIntervalMillis;
+  private final long maxBackoffMillis;
+  private final Object lock = new Object();
+
+  private volatile boolean up;
+  // Until the first connect attempt has finished, a link that isn't up yet is still starting rather than down.
+  private volatile boolean starting = true;
+  private volatile long lastActivity = System.currentTimeMillis();
+  private boolean recovered;
+
+  public LinkSupervisor(DeviceHandler deviceHandler, long probeIntervalMillis, long maxBackoffMillis) {
+    this.deviceHandler = deviceHandler;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  public void start() {
+    Thread thread = new Thread(this::run, "supervisor-" + deviceHandler.getTerminalConfig().tid);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public boolean isUp() {
+    return up;
+  }
+
+  public boolean isStarting() {
+    return starting;
+  }
+
+  // A request is using the link, or has just finished with it, so there's no need to probe it for a while.
+  public void activity() {
+    lastActivity = System.currentTimeMillis();
+  }
+
+  public void linkFailed(String reason) {
+    synchronized (lock) {
+      if (!up) return;
+      up = false;
+      lock.notifyAll();
+    }
+    ErrorHandler.error(ErrorType.deviceConnectionError, "Lost the link to terminal " + deviceHandler.getTerminalConfig().tid + " (" + reason + "), reconnecting.");
+    deviceHandler.linkDown();
+  }
+
+  private void run() {
+    long backoff = MIN_BACKOFF_MILLIS;
+    while (!Thread.currentThread().isInterrupted()) {
+      if (!up) {
+        boolean connected = reconnect();
+        starting = false;
+        if (connected) {
+          Log.info("Link to terminal " + deviceHandler.getTerminalConfig().tid + " is up.");
+          backoff = MIN_BACKOFF_MILLIS;
+        }
+        else {
+          pause(backoff);
+          backoff = Math.min(backoff * 2, maxBackoffMillis);
+          continue;
+        }
+      }
+
+      pause(probeIntervalMillis);
+      // A busy terminal is being used, and a probe would only take a queue slot and hold this thread until the
+      // transaction ends. The request finishing counts as proof the link is up.
+      if (!deviceHandler.getExecutor().isIdle()) continue;
+      if (up && System.currentTimeMillis() - lastActivity >= probeIntervalMillis) {
+        Boolean alive = onTerminal(deviceHandler::probeLink);
+        if (Boolean.FALSE.equals(alive)) linkFailed("probe failed");
+      }
+    }
+  }
+
+  private boolean reconnect() {
+    Boolean connected = onTerminal(() -> {
+      if (!deviceHandler.connectToTerminal()) return false;
+      if (deviceHandler.initTerminalSettings() != EcrStatus.ECR_OK) return false;
+      // Fills the status cache, so the first Status requests don't have to queue for the terminal.
+      deviceHandler.probeLink();
+      if (!recovered) {
+        // Journal entries left open by the last run can only be looked up once the terminal is reachable.
+        deviceHandler.recoverJournal();
+        recovered = true;
+      }
+      return true;
+    });
+    if (!Boolean.TRUE.equals(connected)) return false;
+    synchronized (lock) {
+      up = true;
+    }
+    activity();
+    return true;
+  }
+
+  // Runs the call on the terminal's worker so it can't interleave with a transaction. Returns null if the queue is full.
+  private Boolean onTerminal(Supplier<Boolean> call) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    boolean queued = deviceHandler.getExecutor().submit(() -> {
+      try {
+        result.complete(call.get());
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    if (!queued) return null;
+
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      ErrorHandler.error(ErrorType.deviceConnectionError, (Exception) e.getCause(), "Terminal link check failed.");
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  private void pause(long millis) {
+    synchronized (lock) {
+      try {
+        // linkFailed wakes this early so a reconnect starts straight away.
+        lock.wait(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
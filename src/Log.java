@@ -0,0 +1,139 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Levelled logging that never blocks the caller. Lines go into a bounded ring and a background thread writes them out,
+// so a slow log disk can't hold up the terminal's callback thread. If the ring is full, lines are dropped and counted.
+public class Log {
+  public enum Level { DEBUG, INFO, WARN, ERROR }
+
+  private static final int CAPACITY = 8192;
+  private static final ArrayBlockingQueue<Entry> ring = new ArrayBlockingQueue<>(CAPACITY);
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final Object flushLock = new Object();
+
+  private static volatile Level level = Level.INFO;
+  private static volatile boolean commLog = true;
+
+  private static final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+  private static long cachedSecond = -1;
+  private static String cachedTimestamp;
+
+  private static class Entry {
+    final long time;
+    final Level level;
+    final String message;
+    final Throwable error;
+
+    Entry(Level level, String message, Throwable error) {
+      this.time = System.currentTimeMillis();
+      this.level = level;
+      this.message = message;
+      this.error = error;
+    }
+  }
+
+  static {
+    Thread writer = new Thread(Log::writeLoop, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+  }
+
+  public static void configure(Level minimum, boolean logComm) {
+    level = minimum;
+    commLog = logComm;
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message, null);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message, null);
+  }
+
+  public static void warn(String message) {
+    log(Level.WARN, message, null);
+  }
+
+  public static void error(String message, Throwable error) {
+    log(Level.ERROR, message, error);
+  }
+
+  // The terminal library's comm log is very chatty, so it has its own switch.
+  public static void comm(String message) {
+    if (commLog) log(Level.INFO, message, null);
+  }
+
+  public static boolean isEnabled(Level at) {
+    return at.compareTo(level) >= 0;
+  }
+
+  public static void log(Level at, String message, Throwable error) {
+    if (!isEnabled(at)) return;
+    if (!ring.offer(new Entry(at, message, error))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  // Writes out everything logged so far. Called on shutdown so the last lines aren't lost.
+  public static void flush() {
+    List<Entry> batch = new ArrayList<>();
+    synchronized (flushLock) {
+      ring.drainTo(batch);
+      write(batch);
+    }
+  }
+
+  private static void writeLoop() {
+    List<Entry> batch = new ArrayList<>();
+    while (true) {
+      try {
+        Entry first = ring.poll(1, TimeUnit.SECONDS);
+        if (first == null) continue;
+        synchronized (flushLock) {
+          batch.add(first);
+          ring.drainTo(batch);
+          write(batch);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        // Never let a bad line kill the writer.
+        e.printStackTrace();
+      }
+      batch.clear();
+    }
+  }
+
+  // Only the writer (or a flush holding flushLock) gets here, so the cached timestamp needs no other locking.
+  private static void write(List<Entry> batch) {
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      System.err.println(timestamp(System.currentTimeMillis()) + " WARN " + lost + " log lines dropped, logging could not keep up.");
+    }
+
+    for (Entry entry : batch) {
+      PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+      out.println(timestamp(entry.time) + " " + entry.level + " " + entry.message);
+      if (entry.error != null) entry.error.printStackTrace(out);
+    }
+    System.out.flush();
+    System.err.flush();
+  }
+
+  private static String timestamp(long time) {
+    long second = time / 1000;
+    if (second != cachedSecond) {
+      cachedSecond = second;
+      cachedTimestamp = timestampFormat.format(new Date(time));
+    }
+    return cachedTimestamp;
+  }
+}
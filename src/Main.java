@@ -1,133 +1,267 @@
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
-import ecrlib.api.enums.EcrStatus;
 import ecrlib.api.enums.EcrTerminalStatus;
 import models.Config;
 import models.EPOSMessage;
 import models.ErrorType;
 import models.ResponseMessage;
+import models.TerminalConfig;
 
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
-  public static final Gson gson = new Gson();
+  private static final Set<String> REQUEST_TYPES = new HashSet<>(Arrays.asList(
+          "Sale", "Refund", "Reversal", "Status", "Batch", "Reconcile", "Continue", "Last", "Test", "Update"));
+  public static final Gson gson = new GsonBuilder()
+          .registerTypeAdapterFactory(new PrintoutLineAdapter())
+          .create();
   public static void main(String[] args) {
+    long start = System.nanoTime();
     Config config = new ConfigHandler().loadConfig();
-    DeviceHandler deviceHandler = new DeviceHandler();
-
-    if (!deviceHandler.connectToTerminal(config.terminalIp, config.terminalPort, config.terminalTimeout)) {
-      ErrorHandler.error(ErrorType.deviceConnectionError, "Failed to connect to terminal.");
-      return;
-    }
-
-    if (deviceHandler.initTerminalSettings(config) != EcrStatus.ECR_OK) {
-      ErrorHandler.error(ErrorType.deviceGenericError, "Failed to setup terminal.");
-      return;
+    Log.configure(Log.Level.valueOf(config.logLevel), config.commLog);
+    if (config.metricsPort != null) {
+      MetricsServer.start(config.metricsPort);
     }
 
-    ServerSocket serverSocket;
+    // The port is opened before anything touches the terminal library, so EPOS gets a "starting" reply instead of
+    // a refused connection while the native code loads and the terminal connects.
+    CompletableFuture<TerminalRegistry> registry = new CompletableFuture<>();
+    EPOSServer server = new EPOSServer(config.serverPort, (connection, msg) -> dispatch(connection, msg, registry.getNow(null)));
     try {
-      serverSocket = new ServerSocket(config.serverPort);
+      server.bind();
     } catch (IOException e) {
       // Crash out of app - Likely failed to bind to port
       ErrorHandler.error(ErrorType.eposConnectionError, e, "Likely failed to bind to port");
       return;
     }
+    Log.info("Listening for EPOS on port " + config.serverPort + " after " + (System.nanoTime() - start) / 1000000 + " ms.");
 
-    while (true) {
-      try (Socket socket = serverSocket.accept()) {
-        new ConnectionHandler(socket, deviceHandler).run();
-      }
-      catch (IOException e) {
-        // Logs error locally if the socket dies.
-        ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while connecting to EPOS");
+    Thread startup = new Thread(() -> {
+      try {
+        registry.complete(startTerminals(config));
+      } catch (RuntimeException | Error e) {
+        ErrorHandler.error(ErrorType.configError, "Failed to start the terminals: " + e);
+        // Leaves EPOS with a "no terminal" error rather than "starting" forever.
+        registry.complete(new TerminalRegistry());
       }
+    }, "startup");
+    startup.setDaemon(true);
+    startup.start();
+
+    server.run();
+  }
+
+  // Loads the terminal library (on first use of the backend) and starts each terminal's supervisor, which connects in
+  // the background while the printout dictionary loads.
+  private static TerminalRegistry startTerminals(Config config) {
+    TerminalRegistry registry = new TerminalRegistry();
+    List<TerminalConfig> terminals = config.terminals;
+    if (terminals.size() > 1 && Objects.equals(config.backend, "ecrlib")) {
+      // ecrlib keeps its native terminal in a static field, so every new EcrPaymentTerminal takes over the previous one's link.
+      ErrorHandler.error(ErrorType.configError, "The terminal library can only drive one terminal per process, only terminal " + terminals.get(0).tid + " will be used.");
+      terminals = terminals.subList(0, 1);
+    }
+
+    for (TerminalConfig terminal : terminals) {
+      DeviceHandler deviceHandler = new DeviceHandler(config, terminal);
+      // Connects in the background and keeps reconnecting, so a terminal that is off at startup is picked up later.
+      deviceHandler.getSupervisor().start();
+      registry.add(deviceHandler);
     }
+    return registry;
   }
 
-  static class ConnectionHandler {
-    private final DeviceHandler deviceHandler;
-    DataOutputStream out;
-    DataInputStream in;
+  static void dispatch(EPOSConnection out, EPOSMessage msg, TerminalRegistry registry) {
+    if (registry == null) {
+      reply(out, starting(), msg.id);
+      return;
+    }
 
-    public ConnectionHandler(Socket socket, DeviceHandler deviceHandler) {
-      this.deviceHandler = deviceHandler;
-      try {
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-      } catch (IOException e) {
-        // Logs error locally if the socket dies.
-        ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while connecting to EPOS");
+    DeviceHandler deviceHandler = registry.route(msg);
+    if (deviceHandler == null) {
+      reply(out, ErrorHandler.buildErrorObject(ErrorType.deviceNotConnected, "No terminal configured for this request."), msg.id);
+      return;
+    }
+
+    if (Objects.equals(msg.type, "Response")) {
+      // Answers a prompt from the transaction already running on the terminal, so it can't queue behind it.
+      deviceHandler.setCallbackResponse(msg);
+      return;
+    }
+
+    if (Objects.equals(msg.type, "Receipt")) {
+      // Receipts are already rendered (or being rendered), so this never waits for the terminal queue.
+      deviceHandler.getReceipt(msg.value, msg.copy).thenAccept(response -> reply(out, response, msg.id));
+      return;
+    }
+
+    if (!deviceHandler.getSupervisor().isUp()) {
+      if (deviceHandler.getSupervisor().isStarting()) {
+        reply(out, starting(), msg.id);
+        return;
       }
+      ResponseMessage down = new ResponseMessage("error");
+      down.prompt = "The terminal is not connected, reconnecting. Please try again shortly.";
+      down.status = "TK_TERMINAL_LINK_DOWN";
+      reply(out, down, msg.id);
+      return;
     }
 
-    public void run() {
-      while (true) {
-        try {
-          EPOSMessage msg = waitForMessage();
-          if (msg == null || Objects.equals(msg.type, "closeConnection")) break; //When we receive this message from 4D, break from loop.
-
-          new MessageHandler(out, msg, deviceHandler).start();
-        } catch (IOException e) {
-          // Logs error locally if the socket dies.
-          ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while receiving message from EPOS");
-          return;
+    if (Objects.equals(msg.type, "Status") || Objects.equals(msg.type, "Last")) {
+      // Answered from what the terminal last reported, unless that is stale or missing and has to be read from the terminal.
+      ResponseMessage cached = Objects.equals(msg.type, "Status") ? deviceHandler.getCachedTerminalState() : deviceHandler.getCachedLastTransaction();
+      if (cached != null) {
+        reply(out, cached, msg.id);
+        return;
+      }
+    }
+
+    String key = IdempotencyCache.keyOf(msg);
+    if (key != null) {
+      CompletableFuture<ResponseMessage> original = deviceHandler.getIdempotencyCache().claim(key, IdempotencyCache.payloadOf(msg));
+      if (original != null) {
+        // A retry of a request that is running or has finished, answer it from the first attempt instead of charging again.
+        Log.info("Duplicate " + msg.type + " request " + key + ", answering it from the original request.");
+        if (!original.isDone()) {
+          // The retry is most likely on a new connection, so send the remaining prompts there.
+          deviceHandler.setupEPOSCallback(out, msg.id);
         }
+        original.handle((response, e) -> response != null ? response : originalFailed())
+                .thenAccept(response -> reply(out, response, msg.id));
+        return;
       }
     }
 
-    public EPOSMessage waitForMessage() throws IOException {
-      byte[] messageByte = new byte[1024];
-      StringBuilder dataString = new StringBuilder(1024);
+    TerminalExecutor.Lane lane = isReadOnly(msg.type) ? TerminalExecutor.Lane.PRIORITY : TerminalExecutor.Lane.NORMAL;
+    if (!deviceHandler.getExecutor().submit(new MessageHandler(out, msg, deviceHandler), lane)) {
+      deviceHandler.getIdempotencyCache().abandon(key);
+      ResponseMessage busy = new ResponseMessage("error");
+      busy.prompt = "Terminal is busy, please try again.";
+      busy.status = "TK_TERMINAL_BUSY";
+      reply(out, busy, msg.id);
+    }
+  }
 
-      int lastChar = 0;
-      do {
-        int currentBytesRead = in.read(messageByte);
-        if(currentBytesRead>0) {
-          dataString.append(new String(messageByte, 0, currentBytesRead, StandardCharsets.UTF_8));
-          lastChar = dataString.charAt(dataString.length() - 1);
-        }
-      } while ((lastChar != 3) && (lastChar != 0));
+  // Requests that only read terminal state. Ones the caches can't answer go ahead of queued sales.
+  static boolean isReadOnly(String type) {
+    return Objects.equals(type, "Status") || Objects.equals(type, "Last") || Objects.equals(type, "Test");
+  }
 
-      if (dataString.length() == 0) return null;
+  // Requests that change what the terminal has done, which makes the cached last transaction out of date.
+  static boolean isMutating(String type) {
+    return Objects.equals(type, "Sale") || Objects.equals(type, "Refund") || Objects.equals(type, "Reversal")
+            || Objects.equals(type, "Reconcile") || Objects.equals(type, "Update") || Objects.equals(type, "Continue");
+  }
+
+  private static ResponseMessage starting() {
+    ResponseMessage starting = new ResponseMessage("error");
+    starting.prompt = "The payment service is starting, please try again shortly.";
+    starting.status = "TK_SERVICE_STARTING";
+    return starting;
+  }
+
+  private static ResponseMessage originalFailed() {
+    ResponseMessage error = new ResponseMessage("error");
+    error.prompt = "The original request failed, please try again.";
+    error.status = "TK_REQUEST_FAILED";
+    return error;
+  }
 
-      String outString = dataString.substring(0, dataString.length() - 1);
-      return gson.fromJson(outString, EPOSMessage.class);
+  // Replies carry the id of the request they answer, so EPOS can have several requests outstanding on one connection.
+  // The message may be shared (cached status, a retried request's reply), so the id goes on a copy.
+  static boolean reply(EPOSConnection out, ResponseMessage msg, Integer requestId) {
+    ResponseMessage tagged = new ResponseMessage(msg.type, msg.prompt, msg.minLength, msg.maxLength, msg.values, msg.value, msg.status);
+    tagged.callbackId = msg.callbackId;
+    tagged.requestId = requestId;
+    try {
+      out.send(tagged, EPOSConnection.RESPONSE_TERMINATOR);
+      return true;
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while sending message to EPOS"); // Logs error locally if the socket dies.
+      return false;
+    }
+  }
+
+  static void reply(EPOSConnection out, JsonObject error, Integer requestId) {
+    if (requestId != null) error.addProperty("requestId", requestId);
+    try {
+      out.send(error, EPOSConnection.ERROR_TERMINATOR);
+    } catch (IOException e) {
+      ErrorHandler.error(ErrorType.eposConnectionError, e, "Socket died while sending message to EPOS"); // Logs error locally if the socket dies.
     }
   }
 
-  private static class MessageHandler extends Thread {
+  private static class MessageHandler implements Runnable {
     private final DeviceHandler deviceHandler;
     private final EPOSMessage msg;
-    private final DataOutputStream out;
+    private final EPOSConnection out;
 
-    public MessageHandler(DataOutputStream out, EPOSMessage msg, DeviceHandler deviceHandler) {
+    public MessageHandler(EPOSConnection out, EPOSMessage msg, DeviceHandler deviceHandler) {
       this.out = out;
       this.msg = msg;
       this.deviceHandler = deviceHandler;
     }
 
     public void run() {
-      deviceHandler.setupEPOSCallback(out);
+      String key = IdempotencyCache.keyOf(msg);
+      try {
+        handle(key);
+      } finally {
+        // Only does anything if handle didn't get as far as a response, so retries aren't left waiting.
+        deviceHandler.getIdempotencyCache().abandon(key);
+        // A finished request shows the link is up as well as a probe would.
+        deviceHandler.getSupervisor().activity();
+      }
+    }
+
+    private void handle(String key) {
+      deviceHandler.getSupervisor().activity();
+      deviceHandler.setupEPOSCallback(out, msg.id);
       if (this.deviceHandler.getTerminalStatus() == null) {
-        this.deviceHandler.postToEPOS(ErrorHandler.buildErrorObject(ErrorType.deviceConnectionError));
+        deviceHandler.getSupervisor().linkFailed("no terminal status");
+        reply(out, ErrorHandler.buildErrorObject(ErrorType.deviceConnectionError), msg.id);
         return;
       }
 
-      //Log a timestamp of when this transaction started
-      SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-      String formattedDate = sdf.format(new Date());
       //Log the type of transaction we are processing, for reference when checking logs
-      System.out.println(formattedDate + " - " + msg.type + " request from EPOS");
-      String logJson = gson.toJson(msg);
-      System.out.println(logJson);
+      Log.info(msg.type + " request from EPOS");
+      if (Log.isEnabled(Log.Level.INFO)) {
+        Log.info(gson.toJson(msg));
+      }
+
+      long start = System.nanoTime();
+      long journalId = deviceHandler.journalStart(msg);
+      boolean mutating = isMutating(msg.type);
+      if (mutating) deviceHandler.mutationStarted();
+      ResponseMessage responseMessage;
+      try {
+        responseMessage = process();
+      } finally {
+        // Before the reply goes out, so a Last sent straight after it can't get the cached previous transaction.
+        if (mutating) deviceHandler.mutationFinished();
+      }
+
+      String labels = Metrics.labels("type", typeLabel(msg.type), "result", responseMessage.type, "status", statusLabel(responseMessage.status));
+      Metrics.observe("evo_request_seconds", labels, start);
+      Metrics.increment("evo_requests_total", labels);
 
+      deviceHandler.journalResult(journalId, responseMessage);
+      deviceHandler.getIdempotencyCache().complete(key, responseMessage);
+      deviceHandler.flushCallbackMessages();
+      if (reply(out, responseMessage, msg.id)) {
+        deviceHandler.journalDelivered(journalId);
+      }
+      deviceHandler.renderDeferredReceipts();
+    }
+
+    private ResponseMessage process() {
       ResponseMessage responseMessage = new ResponseMessage("error");
       responseMessage.prompt = "Unknown action requested.";
 
@@ -144,7 +278,7 @@ public class Main {
         responseMessage = this.deviceHandler.getTerminalState();
       }
       else if (Objects.equals(msg.type, "Batch")) {
-        responseMessage = this.deviceHandler.handleBatch();
+        responseMessage = this.deviceHandler.handleBatch(msg.value);
       }
       else if (Objects.equals(msg.type, "Reconcile")) {
         responseMessage = this.deviceHandler.forceReconciliation();
@@ -161,13 +295,17 @@ public class Main {
       else if (Objects.equals(msg.type, "Update")) {
         responseMessage = this.deviceHandler.update();
       }
-      else if (Objects.equals(msg.type, "Response")) {
-        this.deviceHandler.setCallbackResponse(msg);
-        return;
-      }
+      return responseMessage;
+    }
+
+    // Only terminal status codes make sensible labels, free text prompts would create a series per message.
+    // The type comes straight from EPOS, anything the service doesn't handle would otherwise be a new series.
+    private static String typeLabel(String type) {
+      return REQUEST_TYPES.contains(type) ? type : "unknown";
+    }
 
-      String json = gson.toJson(responseMessage) + (char) 4 + (char) 3;
-      this.deviceHandler.postToEPOS(json.getBytes());
+    private static String statusLabel(String status) {
+      return status != null && status.matches("[A-Z0-9_]+") ? status : "";
     }
 
   }
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// In-process latency histograms and counters, exposed in Prometheus text format by MetricsServer.
+public class Metrics {
+  private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+  private static final Map<String, Map<String, Histogram>> histograms = new ConcurrentSkipListMap<>();
+  private static final Map<String, Map<String, LongAdder>> counters = new ConcurrentSkipListMap<>();
+
+  private static class Histogram {
+    final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+    final LongAdder count = new LongAdder();
+    final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    void observe(long nanos) {
+      double seconds = nanos / 1e9;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        if (seconds <= BUCKETS[i]) {
+          buckets[i].increment();
+          break;
+        }
+      }
+      count.increment();
+      sumNanos.add(nanos);
+    }
+  }
+
+  // Times one call to the terminal, labelled with the request type and the stage of the transaction.
+  public static <T> T timeStage(String type, String stage, Supplier<T> call) {
+    long start = System.nanoTime();
+    try {
+      return call.get();
+    } finally {
+      observe("evo_terminal_stage_seconds", labels("type", type, "stage", stage), start);
+    }
+  }
+
+  public static void observe(String name, String labels, long startNanos) {
+    histograms.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(labels, k -> new Histogram())
+            .observe(System.nanoTime() - startNanos);
+  }
+
+  public static void increment(String name, String labels) {
+    counters.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(labels, k -> new LongAdder())
+            .increment();
+  }
+
+  // Builds a label set from name/value pairs, e.g. labels("type", "Sale") gives type="Sale".
+  public static String labels(String... pairs) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i + 1 < pairs.length; i += 2) {
+      if (sb.length() > 0) sb.append(',');
+      sb.append(pairs[i]).append("=\"");
+      String value = pairs[i + 1] != null ? pairs[i + 1] : "";
+      for (int j = 0; j < value.length(); j++) {
+        char c = value.charAt(j);
+        if (c == '\\' || c == '"') sb.append('\\').append(c);
+        else if (c == '\n') sb.append("\\n");
+        else sb.append(c);
+      }
+      sb.append('"');
+    }
+    return sb.toString();
+  }
+
+  public static void write(Writer out) throws IOException {
+    for (Map.Entry<String, Map<String, LongAdder>> metric : counters.entrySet()) {
+      out.write("# TYPE " + metric.getKey() + " counter\n");
+      for (Map.Entry<String, LongAdder> series : metric.getValue().entrySet()) {
+        out.write(metric.getKey() + "{" + series.getKey() + "} " + series.getValue().sum() + "\n");
+      }
+    }
+
+    for (Map.Entry<String, Map<String, Histogram>> metric : histograms.entrySet()) {
+      String name = metric.getKey();
+      out.write("# TYPE " + name + " histogram\n");
+      for (Map.Entry<String, Histogram> series : metric.getValue().entrySet()) {
+        String labels = series.getKey();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        Histogram histogram = series.getValue();
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+          cumulative += histogram.buckets[i].sum();
+          out.write(name + "_bucket{" + prefix + "le=\"" + BUCKETS[i] + "\"} " + cumulative + "\n");
+        }
+        long count = histogram.count.sum();
+        out.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count + "\n");
+        out.write(name + "_sum{" + labels + "} " + (histogram.sumNanos.sum() / 1e9) + "\n");
+        out.write(name + "_count{" + labels + "} " + count + "\n");
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+import com.sun.net.httpserver.HttpServer;
+import models.ErrorType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Serves Metrics on http://127.0.0.1:<metricsPort>/metrics for a local Prometheus agent.
+public class MetricsServer {
+
+  public static void start(int port) {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", exchange -> {
+        StringWriter body = new StringWriter();
+        Metrics.write(body);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      });
+      server.start();
+    } catch (IOException e) {
+      // Metrics are optional, keep running without them.
+      ErrorHandler.error(ErrorType.configError, e, "Failed to start metrics endpoint on port " + port);
+    }
+  }
+}
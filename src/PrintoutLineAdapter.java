@@ -0,0 +1,53 @@
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import ecrlib.api.EcrPrintoutLine;
+
+import java.io.IOException;
+
+// Writes receipt lines field by field instead of through Gson's reflective walk. Output matches the reflective form.
+// Reads go to Gson's reflective adapter: EcrPrintoutLine's constructors decode the text through the native library,
+// so lines read back (cached receipts, simulated ones) are filled in field by field without calling them.
+public class PrintoutLineAdapter implements TypeAdapterFactory {
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    if (type.getRawType() != EcrPrintoutLine.class) return null;
+    TypeAdapter<EcrPrintoutLine> reflective = gson.getDelegateAdapter(this, TypeToken.get(EcrPrintoutLine.class));
+    return (TypeAdapter<T>) new Adapter(reflective);
+  }
+
+  private static class Adapter extends TypeAdapter<EcrPrintoutLine> {
+    private final TypeAdapter<EcrPrintoutLine> reflective;
+
+    Adapter(TypeAdapter<EcrPrintoutLine> reflective) {
+      this.reflective = reflective;
+    }
+
+    @Override
+    public void write(JsonWriter out, EcrPrintoutLine line) throws IOException {
+      if (line == null) {
+        out.nullValue();
+        return;
+      }
+      out.beginObject();
+      out.name("lineNumber_").value(line.getLineNumber());
+      if (line.getText() != null) out.name("text_").value(line.getText());
+      if (line.getLineSize() != null) out.name("size_").value(line.getLineSize().name());
+      if (line.getBackground() != null) out.name("background_").value(line.getBackground().name());
+      if (line.getLineType() != null) out.name("lineType_").value(line.getLineType().name());
+      if (line.getPictureType() != null) out.name("picType_").value(line.getPictureType().name());
+      if (line.getFontType() != null) out.name("fontType_").value(line.getFontType().name());
+      out.endObject();
+    }
+
+    @Override
+    public EcrPrintoutLine read(JsonReader in) throws IOException {
+      return reflective.read(in);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+import ecrlib.api.EcrPrintoutLine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Holds rendered receipts for transactions whose result was sent before the receipts, until EPOS fetches them.
+public class ReceiptStore {
+  private static final int MAX_RECEIPTS = 32;
+  private static final long RECEIPT_TTL_MILLIS = 30 * 60 * 1000;
+
+  private final String prefix;
+  private final AtomicInteger lastHandle = new AtomicInteger();
+  private final Map<String, StoredReceipt> receipts = new LinkedHashMap<>();
+
+  public static class Receipts {
+    public List<EcrPrintoutLine> merchant;
+    public List<EcrPrintoutLine> customer;
+  }
+
+  private static class StoredReceipt {
+    final long created = System.currentTimeMillis();
+    final CompletableFuture<Receipts> receipts = new CompletableFuture<>();
+  }
+
+  public ReceiptStore(String prefix) {
+    this.prefix = prefix;
+  }
+
+  // Reserves a handle for receipts that are about to be rendered.
+  public synchronized String reserve() {
+    evict();
+    String handle = prefix + "-" + lastHandle.incrementAndGet();
+    receipts.put(handle, new StoredReceipt());
+    return handle;
+  }
+
+  public synchronized void complete(String handle, List<EcrPrintoutLine> merchant, List<EcrPrintoutLine> customer) {
+    StoredReceipt stored = receipts.get(handle);
+    if (stored == null) return;
+    Receipts rendered = new Receipts();
+    rendered.merchant = merchant;
+    rendered.customer = customer;
+    stored.receipts.complete(rendered);
+  }
+
+  public synchronized void fail(String handle, Exception e) {
+    StoredReceipt stored = receipts.get(handle);
+    if (stored == null) return;
+    stored.receipts.completeExceptionally(e);
+  }
+
+  // Completes once the receipts are rendered. Returns null for an unknown or expired handle.
+  public synchronized CompletableFuture<Receipts> get(String handle) {
+    evict();
+    StoredReceipt stored = receipts.get(handle);
+    return stored != null ? stored.receipts : null;
+  }
+
+  private void evict() {
+    long expiry = System.currentTimeMillis() - RECEIPT_TTL_MILLIS;
+    Iterator<StoredReceipt> it = receipts.values().iterator();
+    while (it.hasNext()) {
+      StoredReceipt stored = it.next();
+      if (stored.created < expiry || receipts.size() >= MAX_RECEIPTS) {
+        it.remove();
+      }
+      else {
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,347 @@
+import com.google.gson.JsonObject;
+import ecrlib.api.EcrCallbacks;
+import ecrlib.api.EcrPrintoutLine;
+import ecrlib.api.enums.EcrStatus;
+import ecrlib.api.enums.EcrTerminalStatus;
+import ecrlib.api.enums.EcrTransactionResult;
+import ecrlib.api.enums.EcrTransactionType;
+import models.ErrorType;
+import models.SimulatorConfig;
+import models.TerminalConfig;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+// A pure Java stand-in for a Lane/3000, for load testing the service. Approval latency, the cashier callbacks a
+// payment goes through, decline and failure rates and the size of the closed batch all come from config.json.
+public class SimulatedTerminalBackend implements TerminalBackend {
+  private static final List<String> CALLBACKS = Arrays.asList("waitForCard", "waitForPin", "askForSignature", "askForCopy", "waitForCardRemoval");
+
+  private final SimulatorConfig config;
+  private EcrCallbacks callbacks;
+  private volatile EcrTerminalStatus status = EcrTerminalStatus.STATUS_READY_FOR_NEW_TRAN;
+  private volatile boolean connected;
+
+  private EcrTransactionType transactionType;
+  private String amount;
+  private EcrTransactionResult result;
+  private TransactionSnapshot current;
+  private TransactionSnapshot last;
+  private int transactionNumber;
+  private List<TransactionSnapshot> openBatch = new ArrayList<>();
+  private List<TransactionSnapshot> closedBatch = new ArrayList<>();
+
+  public SimulatedTerminalBackend(SimulatorConfig config) {
+    this.config = config;
+    for (String callback : config.callbacks) {
+      if (!CALLBACKS.contains(callback)) {
+        ErrorHandler.error(ErrorType.configError, "Unknown simulator callback " + callback + ", it will be skipped. Known callbacks: " + CALLBACKS);
+      }
+    }
+  }
+
+  @Override
+  public void registerCallbacks(EcrCallbacks callbacks) {
+    this.callbacks = callbacks;
+  }
+
+  @Override
+  public EcrStatus connect(TerminalConfig terminalConfig) {
+    connected = true;
+    return EcrStatus.ECR_OK;
+  }
+
+  @Override
+  public EcrStatus initSettings(TerminalConfig terminalConfig) {
+    return connected ? EcrStatus.ECR_OK : EcrStatus.ECR_UNINITIALIZED;
+  }
+
+  @Override
+  public EcrStatus getTerminalStatus() {
+    return connected ? EcrStatus.ECR_OK : EcrStatus.ECR_UNINITIALIZED;
+  }
+
+  @Override
+  public EcrTerminalStatus readTerminalStatus() {
+    return connected ? status : null;
+  }
+
+  @Override
+  public EcrStatus setTransactionType(EcrTransactionType type) {
+    transactionType = type;
+    amount = null;
+    return EcrStatus.ECR_OK;
+  }
+
+  @Override
+  public EcrStatus setTransactionAmount(String amount) {
+    if (amount == null || amount.isEmpty()) return EcrStatus.ECR_ARGUMENT_INVALID;
+    this.amount = amount;
+    return EcrStatus.ECR_OK;
+  }
+
+  @Override
+  public EcrStatus setNumberOfTransactionToReverse(String transactionId) {
+    return transactionId != null ? EcrStatus.ECR_OK : EcrStatus.ECR_ARGUMENT_INVALID;
+  }
+
+  @Override
+  public EcrStatus startTransaction() {
+    if (!connected) return EcrStatus.ECR_UNINITIALIZED;
+    if (transactionType == null) return EcrStatus.ECR_DATA_MISSING;
+    result = null;
+    if (chance(config.failureRate)) return EcrStatus.ECR_FAIL;
+
+    switch (transactionType) {
+      case TRANS_SALE:
+        runPayment("1");
+        break;
+      case TRANS_REFUND:
+        runPayment("4");
+        break;
+      case TRANS_REVERSAL:
+        runPayment("5");
+        break;
+      case TRANS_RECONCILE:
+        setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_HOST);
+        pause();
+        closeBatch();
+        result = EcrTransactionResult.RESULT_TRANS_ACCEPTED;
+        setStatus(EcrTerminalStatus.STATUS_BATCH_COMPLETED);
+        break;
+      case TRANS_TEST_CONNECTION:
+      case TRANS_TMS:
+        setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_HOST);
+        pause();
+        result = EcrTransactionResult.RESULT_TRANS_ACCEPTED;
+        setStatus(EcrTerminalStatus.STATUS_READY_FOR_NEW_TRAN);
+        break;
+      default:
+        return EcrStatus.ECR_UNSUPPORTED;
+    }
+    transactionType = null;
+    return EcrStatus.ECR_OK;
+  }
+
+  @Override
+  public EcrStatus continueTransaction() {
+    return result != null ? EcrStatus.ECR_OK : EcrStatus.ECR_NO_TERMINAL_DATA;
+  }
+
+  @Override
+  public EcrTransactionResult readTransactionResult() {
+    return result;
+  }
+
+  @Override
+  public EcrStatus getLastTransactionData() {
+    return last != null ? EcrStatus.ECR_OK : EcrStatus.ECR_NO_TERMINAL_DATA;
+  }
+
+  @Override
+  public TransactionSnapshot readTransaction() {
+    TransactionSnapshot snapshot = copy(current);
+    snapshot.date = null;
+    snapshot.time = null;
+    snapshot.type = null;
+    return snapshot;
+  }
+
+  @Override
+  public TransactionSnapshot readLastTransaction() {
+    return copy(last);
+  }
+
+  @Override
+  public String readTransactionNumber() {
+    return String.format("%06d", transactionNumber);
+  }
+
+  @Override
+  public List<EcrPrintoutLine> generateMerchantPrintout() throws Exception {
+    return receipt("MERCHANT COPY");
+  }
+
+  @Override
+  public List<EcrPrintoutLine> generateCustomerPrintout() throws Exception {
+    return receipt("CUSTOMER COPY");
+  }
+
+  @Override
+  public TransactionSnapshot readBatchTransaction(int id) throws Exception {
+    if (id > closedBatch.size()) return null;
+    pause(config.batchEntryLatency);
+    return copy(closedBatch.get(id - 1));
+  }
+
+  @Override
+  public List<EcrPrintoutLine> streamTransactionsFromBatch(int known, Consumer<TransactionSnapshot> sink) throws Exception {
+    List<EcrPrintoutLine> lines = new ArrayList<>();
+    lines.add(line(lines.size(), center("CLOSING DAY")));
+    for (int i = 0; i < closedBatch.size(); i++) {
+      TransactionSnapshot transaction = closedBatch.get(i);
+      lines.add(line(lines.size(), columns(transaction.transactionNumber + " " + transaction.pan, transaction.amount)));
+      if (i < known) continue;
+      pause(config.batchEntryLatency);
+      sink.accept(copy(transaction));
+    }
+    lines.add(line(lines.size(), columns("TRANSACTIONS", String.valueOf(closedBatch.size()))));
+    return lines;
+  }
+
+  // A card payment: the configured cashier callbacks, then the host round trip.
+  private void runPayment(String type) {
+    current = new TransactionSnapshot();
+    current.cardType = "VISA";
+    current.transactionNumber = String.format("%06d", ++transactionNumber);
+    current.pan = String.format("************%04d", ThreadLocalRandom.current().nextInt(10000));
+    current.currencyCode = "GBP";
+    current.amount = amount;
+    current.type = type;
+    Date now = new Date();
+    current.date = new SimpleDateFormat("yyyy-MM-dd").format(now);
+    current.time = new SimpleDateFormat("HH:mm:ss").format(now);
+    current.authorisationType = "ONLINE";
+    setStatus(EcrTerminalStatus.STATUS_IN_PROGRESS);
+
+    result = runCallbacks();
+    if (result == null) {
+      setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_HOST);
+      pause();
+      result = chance(config.declineRate) ? EcrTransactionResult.RESULT_TRANS_REFUSED : EcrTransactionResult.RESULT_TRANS_ACCEPTED;
+    }
+
+    if (result == EcrTransactionResult.RESULT_TRANS_ACCEPTED) {
+      openBatch.add(current);
+      last = current;
+    }
+    setStatus(EcrTerminalStatus.STATUS_READY_FOR_NEW_TRAN);
+  }
+
+  // Returns the result if a callback ended the transaction early, null to carry on.
+  private EcrTransactionResult runCallbacks() {
+    if (callbacks == null) return null;
+    for (String callback : config.callbacks) {
+      switch (callback) {
+        case "waitForCard":
+          setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_CARD);
+          if (!callbacks.waitForCard("Present card")) return EcrTransactionResult.RESULT_TRANS_INTERRUPTED_BY_USER;
+          break;
+        case "waitForPin":
+          setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_PIN);
+          if (!callbacks.waitForPin("Enter PIN")) return EcrTransactionResult.RESULT_TRANS_INTERRUPTED_BY_USER;
+          break;
+        case "askForSignature":
+          setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_SINGATURE);
+          if (!callbacks.askForSignature("Is the signature correct?")) return EcrTransactionResult.RESULT_TRANS_REFUSED;
+          break;
+        case "askForCopy":
+          setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_COPY);
+          callbacks.askForCopy("Print customer copy?");
+          break;
+        case "waitForCardRemoval":
+          setStatus(EcrTerminalStatus.STATUS_WAITING_FOR_CARD_REMOVAL);
+          callbacks.waitForCardRemoval("Remove card");
+          break;
+      }
+    }
+    return null;
+  }
+
+  // Moves the open batch to the closed one, topped up with generated transactions to the configured size.
+  private void closeBatch() {
+    closedBatch = openBatch;
+    openBatch = new ArrayList<>();
+    while (closedBatch.size() < config.batchSize) {
+      TransactionSnapshot transaction = new TransactionSnapshot();
+      transaction.cardType = "MASTERCARD";
+      transaction.transactionNumber = String.format("%06d", ++transactionNumber);
+      transaction.pan = String.format("************%04d", ThreadLocalRandom.current().nextInt(10000));
+      transaction.currencyCode = "GBP";
+      transaction.amount = String.valueOf(100 + ThreadLocalRandom.current().nextInt(10000));
+      transaction.type = "1";
+      transaction.authorisationType = "ONLINE";
+      closedBatch.add(transaction);
+    }
+  }
+
+  private List<EcrPrintoutLine> receipt(String copy) throws Exception {
+    if (current == null) throw new Exception("PRINTOUT_NO_DATA");
+    List<EcrPrintoutLine> lines = new ArrayList<>();
+    lines.add(line(lines.size(), center("SIMULATED TERMINAL")));
+    lines.add(line(lines.size(), center(copy)));
+    lines.add(line(lines.size(), columns(current.date, current.time)));
+    lines.add(line(lines.size(), columns(current.cardType, current.pan)));
+    lines.add(line(lines.size(), columns("TRANSACTION", current.transactionNumber)));
+    lines.add(line(lines.size(), columns("AMOUNT", current.amount + " " + current.currencyCode)));
+    lines.add(line(lines.size(), center(result != null ? result.name() : "IN PROGRESS")));
+    return lines;
+  }
+
+  // A plain text receipt line. Also used by the benchmarks, so both build lines the same way.
+  static EcrPrintoutLine line(int number, String text) {
+    JsonObject line = new JsonObject();
+    line.addProperty("lineNumber_", number);
+    line.addProperty("text_", text);
+    line.addProperty("size_", "SIZE_NORMAL");
+    line.addProperty("background_", "BG_NONE");
+    line.addProperty("lineType_", "LINE_TEXT");
+    line.addProperty("picType_", "PIC_NONE");
+    line.addProperty("fontType_", "FONT_NORMAL");
+    // EcrPrintoutLine's constructor decodes its text through the native library, so simulated lines are read in by Gson.
+    return Main.gson.fromJson(line, EcrPrintoutLine.class);
+  }
+
+  private static String center(String text) {
+    int padding = Math.max(0, (40 - text.length()) / 2);
+    return String.format("%" + (padding + text.length()) + "s", text);
+  }
+
+  private static String columns(String left, String right) {
+    return String.format("%-20s%20s", left, right);
+  }
+
+  private static TransactionSnapshot copy(TransactionSnapshot source) {
+    TransactionSnapshot copy = new TransactionSnapshot();
+    if (source == null) return copy;
+    copy.cardType = source.cardType;
+    copy.transactionNumber = source.transactionNumber;
+    copy.pan = source.pan;
+    copy.currencyCode = source.currencyCode;
+    copy.amount = source.amount;
+    copy.exchangeRate = source.exchangeRate;
+    copy.date = source.date;
+    copy.time = source.time;
+    copy.type = source.type;
+    copy.originalType = source.originalType;
+    copy.authorisationType = source.authorisationType;
+    return copy;
+  }
+
+  private void setStatus(EcrTerminalStatus status) {
+    this.status = status;
+    if (callbacks != null) callbacks.handleStatusChange(status);
+  }
+
+  private void pause() {
+    pause(config.approvalLatency + (config.latencyJitter > 0 ? ThreadLocalRandom.current().nextInt(config.latencyJitter + 1) : 0));
+  }
+
+  private static void pause(long millis) {
+    if (millis <= 0) return;
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static boolean chance(double rate) {
+    return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+  }
+}
@@ -0,0 +1,67 @@
+import ecrlib.api.EcrCallbacks;
+import ecrlib.api.EcrPrintoutLine;
+import ecrlib.api.enums.EcrStatus;
+import ecrlib.api.enums.EcrTerminalStatus;
+import ecrlib.api.enums.EcrTransactionResult;
+import ecrlib.api.enums.EcrTransactionType;
+import models.Config;
+import models.TerminalConfig;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+// Everything DeviceHandler asks of a payment terminal. EcrTerminalBackend drives a real one through ecrlib,
+// SimulatedTerminalBackend stands in for it so the service can be load tested without the DLL or a Lane/3000.
+public interface TerminalBackend {
+
+  static TerminalBackend create(Config config) {
+    if (Objects.equals(config.backend, "simulator")) {
+      return new SimulatedTerminalBackend(config.simulator);
+    }
+    return new EcrTerminalBackend();
+  }
+
+  void registerCallbacks(EcrCallbacks callbacks);
+
+  EcrStatus connect(TerminalConfig terminalConfig);
+
+  EcrStatus initSettings(TerminalConfig terminalConfig);
+
+  EcrStatus getTerminalStatus();
+
+  EcrTerminalStatus readTerminalStatus();
+
+  EcrStatus setTransactionType(EcrTransactionType type);
+
+  EcrStatus setTransactionAmount(String amount);
+
+  EcrStatus setNumberOfTransactionToReverse(String transactionId);
+
+  EcrStatus startTransaction();
+
+  EcrStatus continueTransaction();
+
+  EcrTransactionResult readTransactionResult();
+
+  EcrStatus getLastTransactionData();
+
+  // Card details of the transaction that has just run.
+  TransactionSnapshot readTransaction();
+
+  // The transaction loaded by getLastTransactionData.
+  TransactionSnapshot readLastTransaction();
+
+  String readTransactionNumber();
+
+  List<EcrPrintoutLine> generateMerchantPrintout() throws Exception;
+
+  List<EcrPrintoutLine> generateCustomerPrintout() throws Exception;
+
+  // Reads one transaction of the closed batch, numbered from 1. Returns null past the end of the batch.
+  TransactionSnapshot readBatchTransaction(int id) throws Exception;
+
+  // Walks the closed batch and returns the closing day receipt. The first known transactions are only added to the
+  // receipt, the ones after them are also decoded and handed to the sink.
+  List<EcrPrintoutLine> streamTransactionsFromBatch(int known, Consumer<TransactionSnapshot> sink) throws Exception;
+}
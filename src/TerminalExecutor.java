@@ -0,0 +1,72 @@
+import models.ErrorType;
+
+import java.util.ArrayDeque;
+
+// Runs every request for one terminal on a single worker, so terminal calls can never interleave.
+// Read-only requests queue on a priority lane, so they go ahead of any sale still waiting for the terminal. They can't
+// overtake the request the terminal is working on.
+public class TerminalExecutor {
+  public enum Lane { PRIORITY, NORMAL }
+
+  private final int queueSize;
+  private final Object lock = new Object();
+  private final ArrayDeque<Runnable> priority = new ArrayDeque<>();
+  private final ArrayDeque<Runnable> normal = new ArrayDeque<>();
+  private boolean running;
+
+  public TerminalExecutor(String name, int queueSize) {
+    this.queueSize = queueSize;
+    Thread worker = new Thread(this::work, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  public boolean submit(Runnable task) {
+    return submit(task, Lane.NORMAL);
+  }
+
+  // Returns false when the lane's queue is full and the request should be turned away.
+  public boolean submit(Runnable task, Lane lane) {
+    ArrayDeque<Runnable> queue = lane == Lane.PRIORITY ? priority : normal;
+    synchronized (lock) {
+      if (queue.size() >= queueSize) return false;
+      queue.add(task);
+      lock.notify();
+      return true;
+    }
+  }
+
+  // True when nothing is running on the terminal or waiting for it.
+  public boolean isIdle() {
+    synchronized (lock) {
+      return !running && priority.isEmpty() && normal.isEmpty();
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Runnable task;
+      synchronized (lock) {
+        while (priority.isEmpty() && normal.isEmpty()) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        task = !priority.isEmpty() ? priority.poll() : normal.poll();
+        running = true;
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // One failed request mustn't take the terminal's worker with it.
+        ErrorHandler.error(ErrorType.deviceGenericError, e, "Request failed on the terminal worker.");
+      } finally {
+        synchronized (lock) {
+          running = false;
+        }
+      }
+    }
+  }
+}
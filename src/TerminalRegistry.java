@@ -0,0 +1,47 @@
+import models.EPOSMessage;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+public class TerminalRegistry {
+  private final Map<Integer, DeviceHandler> byTid = new LinkedHashMap<>();
+  private final Map<Integer, DeviceHandler> byLane = new HashMap<>();
+
+  public void add(DeviceHandler deviceHandler) {
+    byTid.put(deviceHandler.getTerminalConfig().tid, deviceHandler);
+    if (deviceHandler.getTerminalConfig().laneId != null) {
+      byLane.put(deviceHandler.getTerminalConfig().laneId, deviceHandler);
+    }
+  }
+
+  public boolean isEmpty() {
+    return byTid.isEmpty();
+  }
+
+  public Collection<DeviceHandler> all() {
+    return byTid.values();
+  }
+
+  // Picks the terminal a message is meant for. Returns null if it can't be worked out.
+  public DeviceHandler route(EPOSMessage msg) {
+    if (msg.tid != null) return byTid.get(msg.tid);
+    if (msg.laneId != null) return byLane.get(msg.laneId);
+    if (byTid.size() == 1) return byTid.values().iterator().next();
+
+    if (Objects.equals(msg.type, "Response")) {
+      // Callback ids are unique across terminals, so a Response can find its prompt without a tid.
+      DeviceHandler waiting = null;
+      for (DeviceHandler deviceHandler : byTid.values()) {
+        if (deviceHandler.isWaitingForCallback(msg.callbackId)) {
+          if (waiting != null) return null;
+          waiting = deviceHandler;
+        }
+      }
+      return waiting;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,35 @@
+import ecrlib.api.enums.EcrTerminalStatus;
+
+// The last status the terminal reported, kept current by handleStatusChange and by any status read on the link.
+// Lets Status requests be answered without a round trip to the terminal while the value is recent enough.
+public class TerminalStatusCache {
+  private final long maxAgeNanos;
+  private volatile EcrTerminalStatus status;
+  private volatile long updatedAt;
+
+  public TerminalStatusCache(long maxAgeMillis) {
+    this.maxAgeNanos = maxAgeMillis * 1_000_000L;
+  }
+
+  public void update(EcrTerminalStatus status) {
+    if (status == null) return;
+    this.updatedAt = System.nanoTime();
+    this.status = status;
+  }
+
+  // Returns null once the status is older than the staleness bound, the caller then reads it from the terminal.
+  public EcrTerminalStatus fresh() {
+    EcrTerminalStatus current = status;
+    if (current == null || System.nanoTime() - updatedAt > maxAgeNanos) return null;
+    return current;
+  }
+
+  // The last status whatever its age. Used while a transaction is running, when status changes arrive as they happen.
+  public EcrTerminalStatus latest() {
+    return status;
+  }
+
+  public void invalidate() {
+    status = null;
+  }
+}
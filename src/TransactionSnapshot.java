@@ -0,0 +1,104 @@
+import ecrlib.api.EcrPaymentTerminal;
+import ecrlib.api.EcrPrintoutLine;
+import ecrlib.api.enums.TlvTag;
+import ecrlib.api.tlv.Tag;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+// The card and amount details of one transaction, read from the terminal once and decoded up front.
+public class TransactionSnapshot {
+  private static final char[] CP1250 = buildCp1250Table();
+
+  // Receipts, only set when the reply carries them.
+  public List<EcrPrintoutLine> merchant;
+  public List<EcrPrintoutLine> customer;
+  // Set instead of the receipts when they are fetched later with a Receipt request.
+  public String receiptHandle;
+  public String cardType;
+  public String transactionNumber;
+  public String pan;
+  public String currencyCode;
+  public String amount;
+  public String exchangeRate;
+  public String date;
+  public String time;
+  public String type;
+  public String originalType;
+  public String authorisationType;
+
+  // Result of the transaction that has just run (sale, refund, reversal or continue).
+  public static TransactionSnapshot readResult(EcrPaymentTerminal terminalComm) {
+    TransactionSnapshot snapshot = new TransactionSnapshot();
+    snapshot.readCardDetails(terminalComm);
+    snapshot.exchangeRate = terminalComm.readTransactionExchangeRate();
+    return snapshot;
+  }
+
+  // A stored transaction, as loaded by getLastTransactionData or getSingleTransactionFromBatch.
+  public static TransactionSnapshot readStored(EcrPaymentTerminal terminalComm, boolean withExchangeRate) {
+    TransactionSnapshot snapshot = new TransactionSnapshot();
+    snapshot.readCardDetails(terminalComm);
+    if (withExchangeRate) {
+      snapshot.exchangeRate = terminalComm.readTransactionExchangeRate();
+    }
+    snapshot.date = terminalComm.readTransactionDate();
+    snapshot.time = terminalComm.readTransactionTime();
+    snapshot.type = decode(terminalComm.readTag(TlvTag.TAG_TRANSACTION_TYPE));
+    if (snapshot.isReversal()) {
+      snapshot.originalType = decode(terminalComm.readTag(TlvTag.TAG_ORIGINAL_TRANSACTION_TYPE));
+    }
+    snapshot.authorisationType = decode(terminalComm.readTag(TlvTag.TAG_AUTHORIZATION_TYPE));
+    return snapshot;
+  }
+
+  private void readCardDetails(EcrPaymentTerminal terminalComm) {
+    cardType = decode(terminalComm.readTag(TlvTag.TAG_APP_PREFERRED_NAME));
+    transactionNumber = decode(terminalComm.readTag(TlvTag.TAG_TRANSACTION_NUMBER));
+    pan = decode(terminalComm.readTag(TlvTag.TAG_MASKED_PAN));
+    currencyCode = terminalComm.readTransactionCurrencyLabel();
+    amount = terminalComm.readTransactionAmount();
+  }
+
+  public boolean isReversal() {
+    return "5".equals(type);
+  }
+
+  // Tags are Cp1250 text. A missing tag throws a NullPointerException, as reading it directly always has.
+  public static String decode(Tag tag) {
+    return decode(tag.getData());
+  }
+
+  public static String decode(byte[] data) {
+    char[] chars = new char[data.length];
+    for (int i = 0; i < data.length; i++) {
+      chars[i] = CP1250[data[i] & 0xFF];
+    }
+    return new String(chars);
+  }
+
+  // Cp1250 is single byte, so decode it once into a lookup table instead of per tag.
+  private static char[] buildCp1250Table() {
+    CharsetDecoder decoder = Charset.forName("Cp1250").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    char[] table = new char[256];
+    ByteBuffer in = ByteBuffer.allocate(1);
+    CharBuffer out = CharBuffer.allocate(2);
+    for (int i = 0; i < 256; i++) {
+      in.clear();
+      in.put((byte) i);
+      in.flip();
+      out.clear();
+      decoder.reset();
+      decoder.decode(in, out, true);
+      decoder.flush(out);
+      table[i] = out.position() > 0 ? out.get(0) : '\uFFFD';
+    }
+    return table;
+  }
+}
@@ -0,0 +1,41 @@
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Decodes UTF-8 straight out of a byte range, so a frame can be parsed without first building a String.
+public class Utf8SliceReader extends Reader {
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private ByteBuffer input;
+  private boolean flushed;
+
+  public Utf8SliceReader reset(byte[] data, int offset, int length) {
+    input = ByteBuffer.wrap(data, offset, length);
+    decoder.reset();
+    flushed = false;
+    return this;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) {
+    if (len == 0) return 0;
+    CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+    if (!flushed) {
+      decoder.decode(input, out, true);
+      if (!input.hasRemaining() && out.hasRemaining()) {
+        decoder.flush(out);
+        flushed = true;
+      }
+    }
+    int read = out.position() - off;
+    return read == 0 && flushed ? -1 : read;
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -1,10 +1,29 @@
 package models;
+
+import java.util.List;
+
 public class Config {
   public String terminalIp;
   public Integer terminalPort;
   public Integer terminalTimeout;
   public Integer serverPort;
   public Integer tid;
+  public Integer callbackTimeout;
+  public List<TerminalConfig> terminals;
+  public Integer terminalQueueSize;
+  public Boolean deferReceipts;
+  public Integer metricsPort;
+  public String backend;
+  public SimulatorConfig simulator;
+  public String logLevel;
+  public Boolean commLog;
+  public String journalDir;
+  public Integer idempotencyTtl;
+  public Integer statusMaxAge;
+  public Integer lastMaxAge;
+  public Integer probeInterval;
+  public Integer eventWindow;
+  public Integer reconnectMaxDelay;
   Config(String terminalIp, Integer terminalPort, Integer terminalTimeout, Integer serverPort, Integer tid) {
     this.terminalIp = terminalIp;
     this.terminalPort = terminalPort;
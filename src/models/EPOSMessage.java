@@ -8,6 +8,10 @@ public class EPOSMessage {
   public String currency;
   public String value;
   public String evoTransId;
+  public Integer callbackId;
+  public Integer tid;
+  public Integer laneId;
+  public String copy;
 
   public EPOSMessage(Integer id, String type, String currency, String value, Integer saleId, Integer transId, String evoTransId) {
     this.id = id;
@@ -1,20 +1,20 @@
 package models;
 
-import com.google.gson.JsonObject;
-
 public class ResponseMessage {
   public String type;
   public String prompt;
   public Integer minLength;
   public Integer maxLength;
   public String[] values;
-  public JsonObject value;
+  public Object value;
   public String status;
+  public Integer callbackId;
+  public Integer requestId;
 
   public ResponseMessage(String type) {
     this.type = type;
   }
-  public ResponseMessage(String type, String prompt, Integer minLength, Integer maxLength, String[] values, JsonObject value, String status) {
+  public ResponseMessage(String type, String prompt, Integer minLength, Integer maxLength, String[] values, Object value, String status) {
     this.type = type;
     this.prompt = prompt;
     this.minLength = minLength;
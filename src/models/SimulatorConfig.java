@@ -0,0 +1,13 @@
+package models;
+
+import java.util.List;
+
+public class SimulatorConfig {
+  public Integer approvalLatency;
+  public Integer latencyJitter;
+  public List<String> callbacks;
+  public Double declineRate;
+  public Double failureRate;
+  public Integer batchSize;
+  public Integer batchEntryLatency;
+}
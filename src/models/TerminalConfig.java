@@ -0,0 +1,17 @@
+package models;
+
+public class TerminalConfig {
+  public String terminalIp;
+  public Integer terminalPort;
+  public Integer terminalTimeout;
+  public Integer tid;
+  public Integer laneId;
+
+  public TerminalConfig(String terminalIp, Integer terminalPort, Integer terminalTimeout, Integer tid, Integer laneId) {
+    this.terminalIp = terminalIp;
+    this.terminalPort = terminalPort;
+    this.terminalTimeout = terminalTimeout;
+    this.tid = tid;
+    this.laneId = laneId;
+  }
+}